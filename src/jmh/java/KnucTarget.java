@@ -0,0 +1,93 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** the default package side of bench.Knuc, see there */
+public class KnucTarget implements bench.Knuc {
+
+    public void threads(int threads) {
+        knucleotide.nproc = threads;
+    }
+
+    public synchronized Path fasta(int n) throws Exception {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "knucleotide-bench");
+        Path path = dir.resolve("fasta-" + n + ".txt");
+        if (Files.exists(path))
+            return path;
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "fasta", ".tmp");
+        try (OutputStream out = Channels.newOutputStream(FileChannel.open(tmp, StandardOpenOption.WRITE))) {
+            new fasta(false).write(out, n);
+        }
+        Files.move(tmp, path);
+        return path;
+    }
+
+    public Object options(String ... args) {
+        return new knucleotide.Options(args);
+    }
+
+    public int decode(byte [] block, int size, boolean swar) {
+        knucleotide.Reader.Wrapper wrapper = new knucleotide.Reader.Wrapper();
+        wrapper.data = block;
+        wrapper.size = size;
+        return swar ? wrapper.make() : wrapper.makeScalar();
+    }
+
+    public Object read(Object opts, InputStream is) throws Exception {
+        knucleotide knuc = new knucleotide();
+        new knucleotide.Reader((knucleotide.Options) opts, null).read(knuc, is);
+        return knuc;
+    }
+
+    public long total(Object knuc) {
+        return ((knucleotide) knuc).total;
+    }
+
+    public Object create(Object knuc, Object opts, int offset, int frag) {
+        knucleotide k = (knucleotide) knuc;
+        knucleotide.Result result = knucleotide.Result.of(frag, (knucleotide.Options) opts, k.total / frag);
+        return ((knucleotide.Counts) result).create(k, offset, frag);
+    }
+
+    public Object roll(Object knuc, Object opts, int frag) {
+        knucleotide k = (knucleotide) knuc;
+        knucleotide.Rolling rolling = new knucleotide.Rolling(new int[] { frag }, (knucleotide.Options) opts);
+        return rolling.count(k.seq, 0, (int) k.total, rolling.tables(k.total))[0];
+    }
+
+    public Object reduce(Object result, Object other) {
+        return ((knucleotide.Table) result).reduce((knucleotide.Result) other);
+    }
+
+    public String writeFrequencies(Object result, long windows) {
+        return ((knucleotide.Result) result).writeFrequencies(windows);
+    }
+
+    public void free(Object result) {
+        ((knucleotide.Result) result).free();
+    }
+
+    public void main(InputStream in, String ... args) throws Exception {
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        System.setIn(in);
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {}
+            public void write(byte [] b, int off, int len) {}
+        }));
+        try {
+            knucleotide.main(args);
+        }
+        finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+    }
+}
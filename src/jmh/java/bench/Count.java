@@ -0,0 +1,59 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * counting a single fragment length on a single thread.
+ * lengths up to 12 are counted in dense arrays, so the table only matters for the longer ones
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2G", "-Xmx2G" })
+@State(Scope.Thread)
+public class Count {
+    @Param({ "1", "2", "12", "18" })
+    public int k;
+
+    @Param({ "hash", "offheap" })
+    public String table;
+
+    Object opts;
+    Object seq;
+
+    @Setup
+    public void setup(Input input) throws Exception {
+        opts = input.knuc.options("-table", table);
+        seq = input.knuc.read(opts, new ByteArrayInputStream(input.bytes));
+    }
+
+    /** Result.create, ie a single task of the offset engine, which counts 1/k of the windows */
+    @Benchmark
+    public void create(Input input, Blackhole bh) {
+        Object result = input.knuc.create(seq, opts, 0, k);
+        bh.consume(result);
+        input.knuc.free(result);
+    }
+
+    /** Rolling.count over the whole sequence, ie every window */
+    @Benchmark
+    public void roll(Input input, Blackhole bh) {
+        Object result = input.knuc.roll(seq, opts, k);
+        bh.consume(result);
+        input.knuc.free(result);
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** decoding the input, ie the time before any counting starts */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2G", "-Xmx2G" })
+public class Decode {
+
+    @State(Scope.Thread)
+    public static class Block {
+        /** the size of the blocks the Reader reads */
+        byte [] block = new byte[1<<20];
+        @Param({ "swar", "scalar" })
+        public String decode;
+    }
+
+    @State(Scope.Thread)
+    public static class Threads {
+        @Param({ "1", "4" })
+        public int decoders;
+        @Param({ "swar", "scalar" })
+        public String decode;
+        Object opts;
+
+        @Setup
+        public void setup(Input input) {
+            opts = input.knuc.options("-decoders", "" + decoders, "-decode", decode);
+        }
+    }
+
+    /** Reader.Wrapper.make (or makeScalar) over the third sequence a block at a time, on a single thread */
+    @Benchmark
+    public int make(Input input, Block state) {
+        byte [] block = state.block;
+        int num = 0;
+        for (int pos = input.third(); pos < input.bytes.length; pos += block.length) {
+            int size = Math.min(block.length, input.bytes.length - pos);
+            System.arraycopy(input.bytes, pos, block, 0, size);
+            num += input.knuc.decode(block, size, state.decode.equals("swar"));
+        }
+        return num;
+    }
+
+    /** Reader.read of the whole input, ie finding the third sequence, decoding it and collating the blocks */
+    @Benchmark
+    public long read(Input input, Threads threads) throws Exception {
+        return input.knuc.total(input.knuc.read(threads.opts, new ByteArrayInputStream(input.bytes)));
+    }
+}
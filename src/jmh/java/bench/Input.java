@@ -0,0 +1,37 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the output of the fasta generator, shared by all the benchmarks.
+ * the third sequence is 5n bases, ie n = 25000000 is the size the README's timings use
+ */
+@State(Scope.Benchmark)
+public class Input {
+    @Param({ "100000", "2500000" })
+    public int n;
+
+    public final Knuc knuc = Knuc.load();
+    public Path path;
+    public byte [] bytes;
+
+    @Setup
+    public void setup() throws Exception {
+        path = knuc.fasta(n);
+        bytes = Files.readAllBytes(path);
+    }
+
+    /** the offset of the first line of the third sequence */
+    public int third() {
+        int pos = 0;
+        for (int kc = 0; kc < 3; pos++)
+            if (bytes[pos]=='>') kc++;
+        while (bytes[pos++] != '\n') {}
+        return pos;
+    }
+}
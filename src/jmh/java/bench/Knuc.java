@@ -0,0 +1,40 @@
+package bench;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * the operations under test.
+ * jmh rejects benchmarks in the default package, and a named package can't refer to the default package,
+ * so the benchmarks call through this interface, which is implemented in the default package by KnucTarget.
+ * the results and options are opaque to the benchmarks
+ */
+public interface Knuc {
+    static Knuc load() {
+        try {
+            return (Knuc) Class.forName("KnucTarget").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException ex) { throw new IllegalStateException(ex); }
+    }
+
+    /** set the number of threads, which is used for the pool and the default options */
+    void threads(int threads);
+    /** a file holding the output of the fasta generator for n, generated once and cached */
+    Path fasta(int n) throws Exception;
+    Object options(String ... args);
+    /** decode the block in place, as Reader.Wrapper.make does (or makeScalar), returning the number of codes */
+    int decode(byte [] block, int size, boolean swar);
+    /** read the third sequence from the stream, returning the knucleotide holding it */
+    Object read(Object opts, InputStream is) throws Exception;
+    /** the length of the sequence read */
+    long total(Object knuc);
+    /** count the fragments of length frag starting at offset, offset+frag, ..., as a task of the offset engine does */
+    Object create(Object knuc, Object opts, int offset, int frag);
+    /** count every fragment of length frag in a single pass, as the rolling engine does for a range */
+    Object roll(Object knuc, Object opts, int frag);
+    Object reduce(Object result, Object other);
+    String writeFrequencies(Object result, long windows);
+    void free(Object result);
+    /** run main with the stream as standard input, discarding the output */
+    void main(InputStream in, String ... args) throws Exception;
+}
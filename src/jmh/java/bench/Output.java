@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** combining the per-task results and writing them */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2G", "-Xmx2G" })
+public class Output {
+
+    /** the results of two tasks of the offset engine, recounted for each invocation since reduce modifies them */
+    @State(Scope.Thread)
+    public static class Reduce {
+        @Param({ "6", "12", "18" })
+        public int k;
+
+        @Param({ "hash", "offheap" })
+        public String table;
+
+        Object opts;
+        Object seq;
+        Object result;
+        Object other;
+
+        @Setup
+        public void setup(Input input) throws Exception {
+            opts = input.knuc.options("-table", table);
+            seq = input.knuc.read(opts, new ByteArrayInputStream(input.bytes));
+        }
+
+        @Setup(Level.Invocation)
+        public void count(Input input) {
+            result = input.knuc.create(seq, opts, 0, k);
+            other = input.knuc.create(seq, opts, k-1, k);
+        }
+
+        @TearDown(Level.Invocation)
+        public void free(Input input) {
+            input.knuc.free(result);
+            input.knuc.free(other);
+        }
+    }
+
+    /** the frequencies are written for every key, so only the short lengths are practical */
+    @State(Scope.Thread)
+    public static class Frequencies {
+        @Param({ "1", "2", "6" })
+        public int freq;
+
+        Object result;
+        long windows;
+
+        @Setup
+        public void setup(Input input) throws Exception {
+            Object opts = input.knuc.options();
+            Object seq = input.knuc.read(opts, new ByteArrayInputStream(input.bytes));
+            result = input.knuc.roll(seq, opts, freq);
+            windows = input.knuc.total(seq) - freq + 1;
+        }
+    }
+
+    /** Result.reduce */
+    @Benchmark
+    public Object reduce(Input input, Reduce state) {
+        return input.knuc.reduce(state.result, state.other);
+    }
+
+    /** Result.writeFrequencies */
+    @Benchmark
+    public String writeFrequencies(Input input, Frequencies state) {
+        return input.knuc.writeFrequencies(state.result, state.windows);
+    }
+}
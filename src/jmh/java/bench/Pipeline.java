@@ -0,0 +1,53 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** main end to end, with the output discarded */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2G", "-Xmx2G" })
+@State(Scope.Thread)
+public class Pipeline {
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "hash", "offheap" })
+    public String table;
+
+    @Setup
+    public void setup(Input input) {
+        input.knuc.threads(threads);
+    }
+
+    /** reading standard input */
+    @Benchmark
+    public void stdin(Input input) throws Exception {
+        input.knuc.main(new ByteArrayInputStream(input.bytes), "-table", table);
+    }
+
+    /** mapping the file */
+    @Benchmark
+    public void file(Input input) throws Exception {
+        input.knuc.main(null, "-table", table, input.path.toString());
+    }
+
+    /** generating the input in the same jvm, so it includes fasta but no io */
+    @Benchmark
+    public void generated(Input input) throws Exception {
+        input.knuc.main(null, "-table", table, "-generate", "" + input.n);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * a count-min sketch with conservative update, for approximate counts of long keys in bounded memory.
+ * each of depth rows holds width counters and a key maps to one counter per row by multiply-shift hashing,
+ * an add only raises the counters that are below the new estimate, and the estimate is the smallest counter.
+ * estimates never undercount, and overcount by more than epsilon*total with probability at most delta,
+ * where epsilon = e/width and delta = exp(-depth).
+ * sketches of the same shape are merged by adding the counters, which preserves both bounds.
+ * not thread safe
+ */
+class CountMinSketch {
+    final int depth;
+    final int bits;
+    final int [] counts;
+    final long [] seeds;
+    /** the counter indices of the key being added */
+    final int [] slots;
+    /** the sum of all the counts added, ie the N in the error bound */
+    long total;
+
+    /**
+     * a sketch with error at most epsilon*total with probability 1-delta,
+     * limited to maxBytes (if positive) by reducing the width, which increases the error
+     */
+    CountMinSketch(double epsilon, double delta, long maxBytes) {
+        depth = depth(delta);
+        bits = bits(epsilon, depth, maxBytes);
+        counts = new int[depth << bits];
+        seeds = new long[depth];
+        slots = new int[depth];
+        // fixed seeds, so that sketches created separately can be merged
+        long seed = 0;
+        for (int row=0; row < depth; row++)
+            seeds[row] = mix(seed += 0x9E3779B97F4A7C15L) | 1;
+    }
+
+    static int depth(double delta) {
+        return Math.max(1, (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    /** log2 of the width */
+    static int bits(double epsilon, int depth, long maxBytes) {
+        int need = 4;
+        while ((1L << need) < Math.E / epsilon && need < 30)
+            need++;
+        while (need > 4 && ((long) depth << need) > Integer.MAX_VALUE - 8
+                || maxBytes > 0 && need > 4 && (4L*depth << need) > maxBytes)
+            need--;
+        return need;
+    }
+
+    /** the size of the counters in bytes */
+    static long bytes(double epsilon, double delta, long maxBytes) {
+        int depth = depth(delta);
+        return 4L*depth << bits(epsilon, depth, maxBytes);
+    }
+
+    /** the splitmix64 finalizer */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    int width() { return 1 << bits; }
+
+    /** the index of the key's counter in the row */
+    int index(long key, int row) {
+        return (row << bits) + (int) ((key * seeds[row]) >>> (64 - bits));
+    }
+
+    void add(long key, int count) {
+        total += count;
+        int min = Integer.MAX_VALUE;
+        for (int row=0; row < depth; row++)
+            min = Math.min(min, counts[slots[row] = index(key, row)]);
+        int next = min + count;
+        for (int row=0; row < depth; row++)
+            if (counts[slots[row]] < next)
+                counts[slots[row]] = next;
+    }
+
+    /** the estimated count, which is never less than the actual count */
+    int estimate(long key) {
+        int min = Integer.MAX_VALUE;
+        for (int row=0; row < depth; row++)
+            min = Math.min(min, counts[index(key, row)]);
+        return min;
+    }
+
+    /** the bound on the overcount, epsilon*total, that holds with probability 1-delta */
+    long error() {
+        return (long) Math.ceil(Math.E / width() * total);
+    }
+
+    /** add the counts of a sketch of the same shape */
+    void merge(CountMinSketch other) {
+        if (other.depth != depth || other.bits != bits)
+            throw new IllegalArgumentException("sketches of different shapes");
+        for (int ii=0; ii < counts.length; ii++)
+            counts[ii] += other.counts[ii];
+        total += other.total;
+    }
+}
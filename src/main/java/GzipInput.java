@@ -0,0 +1,237 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * gzip input, inflated ahead of the reader on other threads and returned in order, in chunks.
+ * bgzf, ie gzip members of at most 64k each with the compressed size in an extra field, is split into batches of
+ * members by a producer thread that only parses the headers, and the batches are inflated in parallel,
+ * so the throughput scales with the number of threads.
+ * plain gzip can't be split, so it's inflated by the producer thread, which at least overlaps with the decoding.
+ * the number of chunks in flight is bounded, so memory doesn't depend on the size of the input
+ */
+class GzipInput extends InputStream {
+    /** the size of a bgzf header, including the BC extra field */
+    static final int headerSize = 18;
+    /** the number of bgzf members per batch, ie up to 1M inflated */
+    static final int batchSize = 16;
+    /** the size of a chunk of plain gzip */
+    static final int chunkSize = 1<<20;
+
+    final InputStream in;
+    final BlockingQueue<Future<byte[]>> chunks;
+    final ExecutorService inflaters;
+    final Thread producer;
+    byte [] chunk = new byte[0];
+    int pos;
+    boolean done;
+
+    /** the input, inflated if it starts with the gzip magic, using the given number of threads if it's bgzf */
+    static InputStream open(InputStream in, int threads) throws IOException {
+        PushbackInputStream push = new PushbackInputStream(in, headerSize);
+        byte [] header = new byte[headerSize];
+        int size = 0;
+        for (int num; size < headerSize && (num = push.read(header, size, headerSize - size)) >= 0; )
+            size += num;
+        push.unread(header, 0, size);
+        if (! gzip(header, size))
+            return push;
+        return new GzipInput(push, bgzf(header, size) ? Math.max(1, threads) : 0);
+    }
+
+    /** whether the file starts with the gzip magic */
+    static boolean compressed(Path path) throws IOException {
+        byte [] header = new byte[2];
+        try (InputStream in = Files.newInputStream(path)) {
+            int size = 0;
+            for (int num; size < 2 && (num = in.read(header, size, 2 - size)) >= 0; )
+                size += num;
+            return gzip(header, size);
+        }
+    }
+
+    static boolean gzip(byte [] header, int size) {
+        return size >= 2 && (header[0] & 0xff)==0x1f && (header[1] & 0xff)==0x8b;
+    }
+
+    /** whether the header is a bgzf header, ie deflate with a single extra field, BC, holding the block size */
+    static boolean bgzf(byte [] header, int size) {
+        return size >= headerSize && header[2]==8 && (header[3] & 4) != 0 && u16(header, 10)==6
+                && header[12]=='B' && header[13]=='C' && u16(header, 14)==2;
+    }
+
+    static int u16(byte [] data, int pos) {
+        return (data[pos] & 0xff) | (data[pos+1] & 0xff) << 8;
+    }
+
+    static int u32(byte [] data, int pos) {
+        return u16(data, pos) | u16(data, pos+2) << 16;
+    }
+
+    /** inflate bgzf with the given number of threads, or plain gzip if zero */
+    GzipInput(InputStream in, int threads) {
+        this.in = in;
+        chunks = new ArrayBlockingQueue<>(2*Math.max(1, threads) + 2);
+        inflaters = threads==0 ? null : Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "inflater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        producer = new Thread(threads==0 ? this::produceGzip : this::produceBgzf, "gzip");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /** queue the chunks of plain gzip, which may be multiple members */
+    void produceGzip() {
+        try {
+            GZIPInputStream gz = new GZIPInputStream(in, 1<<16);
+            for (;;) {
+                Metrics.Span span = Metrics.span("inflate");
+                byte [] data = new byte[chunkSize];
+                int size = 0;
+                for (int num; size < chunkSize && (num = gz.read(data, size, chunkSize - size)) >= 0; )
+                    size += num;
+                span.end(size, 0);
+                if (size==0) break;
+                chunks.put(CompletableFuture.completedFuture(size==chunkSize ? data : Arrays.copyOf(data, size)));
+            }
+            chunks.put(CompletableFuture.completedFuture(null));
+        }
+        catch (InterruptedException ex) {}
+        catch (Exception ex) { fail(ex); }
+    }
+
+    /** queue a task per batch of bgzf members, read a member at a time using the block size in each header */
+    void produceBgzf() {
+        try {
+            for (boolean more = true; more; ) {
+                byte [][] batch = new byte[batchSize][];
+                int num = 0;
+                for (; num < batchSize; num++) {
+                    byte [] header = new byte[headerSize];
+                    int size = readFully(header, 0, headerSize);
+                    if (size==0) { more = false; break; }
+                    if (size < headerSize || ! bgzf(header, size))
+                        throw new IOException("not a bgzf member");
+                    byte [] member = Arrays.copyOf(header, u16(header, 16) + 1);
+                    if (readFully(member, headerSize, member.length - headerSize) < member.length - headerSize)
+                        throw new EOFException("truncated bgzf member");
+                    batch[num] = member;
+                }
+                if (num > 0) {
+                    byte [][] members = Arrays.copyOf(batch, num);
+                    chunks.put(inflaters.submit(() -> inflate(members)));
+                }
+            }
+            chunks.put(CompletableFuture.completedFuture(null));
+        }
+        catch (InterruptedException ex) {}
+        catch (Exception ex) { fail(ex); }
+        finally {
+            inflaters.shutdown();
+        }
+    }
+
+    static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /** inflate the members into a single chunk, checking the size and crc of each */
+    static byte[] inflate(byte [][] members) throws IOException, DataFormatException {
+        Metrics.Span span = Metrics.span("inflate");
+        int total = 0;
+        for (byte [] member : members)
+            total += u32(member, member.length - 4);
+        byte [] data = new byte[total];
+        Inflater inf = inflater.get();
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        for (byte [] member : members) {
+            int size = u32(member, member.length - 4);
+            inf.reset();
+            inf.setInput(member, headerSize, member.length - headerSize - 8);
+            for (int num = 0; num < size; ) {
+                int got = inf.inflate(data, pos + num, size - num);
+                if (got==0 && (inf.finished() || inf.needsInput()))
+                    throw new IOException("truncated bgzf data");
+                num += got;
+            }
+            crc.reset();
+            crc.update(data, pos, size);
+            if ((int) crc.getValue() != u32(member, member.length - 8))
+                throw new IOException("bgzf crc mismatch");
+            pos += size;
+        }
+        span.end(total, 0);
+        return data;
+    }
+
+    int readFully(byte [] data, int off, int len) throws IOException {
+        int size = 0;
+        for (int num; size < len && (num = in.read(data, off + size, len - size)) >= 0; )
+            size += num;
+        return size;
+    }
+
+    /** queue the failure, so the reader sees it in order */
+    void fail(Exception ex) {
+        CompletableFuture<byte[]> failed = new CompletableFuture<>();
+        failed.completeExceptionally(ex);
+        try {
+            chunks.put(failed);
+        }
+        catch (InterruptedException ie) {}
+    }
+
+    /** move to the next chunk, returning false at the end */
+    boolean next() throws IOException {
+        while (! done && pos==chunk.length) {
+            try {
+                byte [] data = chunks.take().get();
+                if (data==null) done = true;
+                else { chunk = data; pos = 0; }
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException ex) {
+                throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+            }
+        }
+        return pos < chunk.length;
+    }
+
+    public int read() throws IOException {
+        return next() ? chunk[pos++] & 0xff : -1;
+    }
+
+    public int read(byte [] b, int off, int len) throws IOException {
+        if (len==0) return 0;
+        if (! next()) return -1;
+        int num = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, num);
+        pos += num;
+        return num;
+    }
+
+    public void close() throws IOException {
+        producer.interrupt();
+        if (inflaters != null) inflaters.shutdownNow();
+        in.close();
+    }
+}
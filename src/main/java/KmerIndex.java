@@ -0,0 +1,266 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * a persistent index of the counts of the k-mers of a single length, ie 2-bit keys of up to 32 bases.
+ * the file is memory mapped, so opening it only reads the header and a query only touches the pages it needs,
+ * and nothing is loaded onto the heap. the layout, little endian and with each value aligned to its size:
+ *   header: magic, version, frag, size, the length of the sequence counted, blockBits, the number of top entries,
+ *           the offsets of the sections and flags
+ *   sparse: the first key of each block of 2^blockBits keys, so a lookup only searches a single block of keys
+ *   keys:   the keys, in unsigned order
+ *   counts: the count of each key, in the same order
+ *   top:    the keys and then the counts of the most frequent keys, most frequent first
+ */
+class KmerIndex implements Closeable {
+    interface Visitor {
+        void visit(long key, int count);
+    }
+
+    static final long magic = 0x3158444e4943554bL;
+    static final int version = 1;
+    static final int headerSize = 128;
+    /** 64 keys per block, ie a block of keys fills 8 cache lines */
+    static final int blockBits = 6;
+    /** the number of the most frequent keys that are stored */
+    static final int topSize = 1<<12;
+    /** log2 of the size of each mapped segment, values never straddle segments since they're aligned */
+    static final int segBits = 30;
+    /** the keys are canonical, ie the lesser of each k-mer and its reverse complement */
+    static final int canonical = 1;
+
+    final MappedByteBuffer [] segs;
+    final int frag;
+    final long size;
+    /** the number of bases counted, ie the windows are length - frag + 1 */
+    final long length;
+    final int numTop;
+    final int flags;
+    final long sparse, keys, counts, top;
+    final long blocks;
+
+    /** map the index, reading just the header */
+    KmerIndex(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            long total = fc.size();
+            segs = new MappedByteBuffer[(int) ((total + (1L << segBits) - 1) >>> segBits)];
+            for (int ii=0; ii < segs.length; ii++) {
+                long start = (long) ii << segBits;
+                segs[ii] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << segBits, total - start));
+                segs[ii].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (total < headerSize || getLong(0) != magic)
+                throw new IOException("not a k-mer index: " + path);
+            if (getInt(8) != version)
+                throw new IOException("unsupported index version: " + getInt(8));
+            // the sparse table and the lookups assume the block size, so an index written with another is refused
+            if (getInt(32) != blockBits)
+                throw new IOException("unsupported index block bits: " + getInt(32) + " rather than " + blockBits);
+        }
+        frag = getInt(12);
+        size = getLong(16);
+        length = getLong(24);
+        numTop = getInt(36);
+        sparse = getLong(40);
+        keys = getLong(48);
+        counts = getLong(56);
+        top = getLong(64);
+        flags = getInt(72);
+        blocks = (size + (1 << blockBits) - 1) >>> blockBits;
+    }
+
+    long getLong(long pos) { return segs[(int) (pos >>> segBits)].getLong((int) (pos & ((1L << segBits) - 1))); }
+    int getInt(long pos) { return segs[(int) (pos >>> segBits)].getInt((int) (pos & ((1L << segBits) - 1))); }
+
+    long key(long index) { return getLong(keys + 8*index); }
+    int count(long index) { return getInt(counts + 4*index); }
+
+    static boolean less(long key, long other) {
+        return key + Long.MIN_VALUE < other + Long.MIN_VALUE;
+    }
+
+    /** the index of the first key that's not less than key, or size if there's none */
+    long lowerBound(long key) {
+        // the last block that starts at or before the key
+        long lo = 0, hi = blocks;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (less(key, getLong(sparse + 8*mid))) hi = mid;
+            else lo = mid + 1;
+        }
+        if (lo==0) return 0;
+        lo = (lo-1) << blockBits;
+        hi = Math.min(size, lo + (1 << blockBits));
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (less(key(mid), key)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** the count of the key, or zero if it's not in the index */
+    int get(long key) {
+        long index = lowerBound(key);
+        return index < size && key(index)==key ? count(index):0;
+    }
+
+    /** visit the keys from first to last inclusive, in unsigned order */
+    void range(long first, long last, Visitor visitor) {
+        for (long index = lowerBound(first); index < size; index++) {
+            long key = key(index);
+            if (less(last, key)) break;
+            visitor.visit(key, count(index));
+        }
+    }
+
+    /** visit the keys that start with the prefix of the given number of bases */
+    void prefix(long prefix, int bases, Visitor visitor) {
+        int shift = 2*(frag - bases);
+        long first = shift==64 ? 0 : prefix << shift;
+        long last = shift==64 ? -1L : first | ((1L << shift) - 1);
+        range(first, last, visitor);
+    }
+
+    /** visit the n most frequent keys, most frequent first, scanning the counts if more than the stored top */
+    void top(int n, Visitor visitor) {
+        if (n <= numTop || numTop==size) {
+            for (int ii=0; ii < Math.min(n, numTop); ii++)
+                visitor.visit(getLong(top + 8*ii), getInt(top + 8L*numTop + 4*ii));
+            return;
+        }
+        long [] tk = new long[n];
+        int [] tc = new int[n];
+        int num = select(this::forEach, tk, tc);
+        for (int ii=0; ii < num; ii++)
+            visitor.visit(tk[ii], tc[ii]);
+    }
+
+    /** visit every key, in unsigned order */
+    void forEach(Visitor visitor) {
+        for (long index=0; index < size; index++)
+            visitor.visit(key(index), count(index));
+    }
+
+    /** the mapping is released when it's collected, so this just drops the references */
+    public void close() {
+        java.util.Arrays.fill(segs, null);
+    }
+
+    interface Source {
+        void forEach(Visitor visitor);
+    }
+
+    /**
+     * fill the arrays with the most frequent entries of the source, most frequent first,
+     * using a min heap of the arrays' length, returning the number of entries
+     */
+    static int select(Source source, long [] tk, int [] tc) {
+        int [] num = new int[1];
+        source.forEach((key, count) -> {
+            int pos;
+            if (num[0] < tc.length) {
+                pos = num[0]++;
+                for (int parent; pos > 0 && tc[parent = (pos-1) >>> 1] > count; pos = parent) {
+                    tk[pos] = tk[parent];
+                    tc[pos] = tc[parent];
+                }
+            }
+            else if (count > tc[0]) {
+                pos = 0;
+                for (int child; (child = 2*pos + 1) < tc.length; pos = child) {
+                    if (child+1 < tc.length && tc[child+1] < tc[child])
+                        child++;
+                    if (count <= tc[child]) break;
+                    tk[pos] = tk[child];
+                    tc[pos] = tc[child];
+                }
+            }
+            else return;
+            tk[pos] = key;
+            tc[pos] = count;
+        });
+        // heap order to descending, by repeatedly moving the min to the end
+        for (int end = num[0]-1; end > 0; end--) {
+            long key = tk[end];
+            int count = tc[end];
+            tk[end] = tk[0];
+            tc[end] = tc[0];
+            int pos = 0;
+            for (int child; (child = 2*pos + 1) < end; pos = child) {
+                if (child+1 < end && tc[child+1] < tc[child])
+                    child++;
+                if (count <= tc[child]) break;
+                tk[pos] = tk[child];
+                tc[pos] = tc[child];
+            }
+            tk[pos] = key;
+            tc[pos] = count;
+        }
+        return num[0];
+    }
+
+    /**
+     * write an index for the keys, which must be in unsigned order, and their counts.
+     * the index is written to a temporary file and then moved into place, so readers never see a partial index
+     */
+    static void write(Path path, int frag, long length, int flags, long [] keys, int [] counts, int size) throws IOException {
+        int numTop = Math.min(size, topSize);
+        long [] tk = new long[numTop];
+        int [] tc = new int[numTop];
+        select(visitor -> {
+            for (int ii=0; ii < size; ii++)
+                visitor.visit(keys[ii], counts[ii]);
+        }, tk, tc);
+
+        long blocks = (size + (1L << blockBits) - 1) >>> blockBits;
+        long sparse = headerSize, keyPos = sparse + 8*blocks, countPos = keyPos + 8L*size;
+        long topPos = (countPos + 4L*size + 7) & ~7L;
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1<<20).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putLong(magic).putInt(version).putInt(frag).putLong(size).putLong(length)
+                    .putInt(blockBits).putInt(numTop)
+                    .putLong(sparse).putLong(keyPos).putLong(countPos).putLong(topPos).putInt(flags);
+            buf.position(headerSize);
+            for (long ii=0; ii < blocks; ii++)
+                put(fc, buf, 8).putLong(keys[(int) (ii << blockBits)]);
+            for (int ii=0; ii < size; ii++)
+                put(fc, buf, 8).putLong(keys[ii]);
+            for (int ii=0; ii < size; ii++)
+                put(fc, buf, 4).putInt(counts[ii]);
+            // pad the counts so the top keys are aligned
+            if ((size & 1) != 0)
+                put(fc, buf, 4).putInt(0);
+            for (int ii=0; ii < numTop; ii++)
+                put(fc, buf, 8).putLong(tk[ii]);
+            for (int ii=0; ii < numTop; ii++)
+                put(fc, buf, 4).putInt(tc[ii]);
+            buf.flip();
+            while (buf.hasRemaining())
+                fc.write(buf);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** the buffer, after writing it to the channel if it doesn't have room for another value */
+    static ByteBuffer put(FileChannel fc, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            buf.flip();
+            while (buf.hasRemaining())
+                fc.write(buf);
+            buf.clear();
+        }
+        return buf;
+    }
+}
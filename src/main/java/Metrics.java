@@ -0,0 +1,249 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * instrumentation of the stages of a run, as jfr events and optionally as a json summary.
+ * a span times a unit of work of a stage, ie a block, a task or a phase, and a wait times a thread that's parked
+ * waiting for another stage. the units are coarse, so timing one costs a tiny fraction of the work.
+ * the events are only created if a recording was started with the jvm, eg with -XX:StartFlightRecording,
+ * since just registering the event classes adds a few hundred ms to startup, and then cost next to nothing
+ * unless they're enabled. the summary is only collected once enabled, and it's global, so it's for a single job,
+ * and a server only collects it when its jobs run one at a time
+ */
+class Metrics {
+    @Name("knucleotide.Span")
+    @Label("Span")
+    @Category("knucleotide")
+    @Description("A unit of work of a stage: a block, a task or a phase")
+    static class SpanEvent extends Event {
+        @Label("Stage") String stage;
+        @Label("Task") @Description("Whether the span is a whole task, for comparing the load of the threads")
+        boolean task;
+        @Label("Length") int frag;
+        @Label("Bytes") @DataAmount long bytes;
+        @Label("Bases") long bases;
+    }
+
+    @Name("knucleotide.Wait")
+    @Label("Wait")
+    @Category("knucleotide")
+    @Description("A thread waiting for another stage")
+    static class WaitEvent extends Event {
+        @Label("Stage") String stage;
+    }
+
+    @Name("knucleotide.Table")
+    @Label("Table")
+    @Category("knucleotide")
+    @Description("A table of counts, once counting is complete")
+    static class TableEvent extends Event {
+        @Label("Length") int frag;
+        @Label("Type") String type;
+        @Label("Size") long size;
+        @Label("Capacity") long capacity;
+        @Label("Load Factor") double load;
+        @Label("Resizes") int resizes;
+    }
+
+    /** the totals of the spans or waits of a stage */
+    static class Totals {
+        long count, nanos, bytes, bases, first = Long.MAX_VALUE, last;
+        final Map<String, Long> threads = new TreeMap<>();
+
+        synchronized void add(long start, long end, long bytes, long bases) {
+            count++;
+            nanos += end - start;
+            this.bytes += bytes;
+            this.bases += bases;
+            first = Math.min(first, start);
+            last = Math.max(last, end);
+            threads.merge(Thread.currentThread().getName(), end - start, Long::sum);
+        }
+    }
+
+    /** whether flight recording was started with the jvm, ie whether to create the events */
+    static final boolean jfr = FlightRecorder.isInitialized();
+    /** whether the summary is being collected */
+    static volatile boolean enabled;
+    static long started;
+    static final Map<String, Totals> spans = new TreeMap<>();
+    static final Map<String, Totals> waits = new TreeMap<>();
+    static final ConcurrentLinkedQueue<String> tasks = new ConcurrentLinkedQueue<>();
+    static final ConcurrentLinkedQueue<String> tables = new ConcurrentLinkedQueue<>();
+
+    /** start collecting the summary, discarding any previous one */
+    static synchronized void enable() {
+        spans.clear();
+        waits.clear();
+        tasks.clear();
+        tables.clear();
+        started = System.nanoTime();
+        enabled = true;
+    }
+
+    static synchronized Totals totals(Map<String, Totals> map, String stage) {
+        return map.computeIfAbsent(stage, key -> new Totals());
+    }
+
+    /** a span of a stage, to be ended once the work is done */
+    static Span span(String stage) { return new Span(stage, false); }
+
+    /** a span of a whole task, which is also listed individually in the summary */
+    static Span task(String stage) { return new Span(stage, true); }
+
+    static final class Span {
+        final String stage;
+        final boolean task;
+        int frag;
+        final SpanEvent event = jfr ? new SpanEvent() : null;
+        final boolean timed = enabled;
+        final long start = timed ? System.nanoTime() : 0;
+
+        Span(String stage, boolean task) {
+            this.stage = stage;
+            this.task = task;
+            if (event != null) event.begin();
+        }
+
+        Span frag(int frag) {
+            this.frag = frag;
+            return this;
+        }
+
+        void end() { end(0, 0); }
+
+        void end(long bytes, long bases) {
+            if (event != null) {
+                event.end();
+                event.stage = stage;
+                event.task = task;
+                event.frag = frag;
+                event.bytes = bytes;
+                event.bases = bases;
+                event.commit();
+            }
+            if (! timed) return;
+            long end = System.nanoTime();
+            totals(spans, stage).add(start, end, bytes, bases);
+            if (task)
+                tasks.add(String.format(Locale.ROOT,
+                        "{\"stage\": %s, \"thread\": %s, \"frag\": %d, \"start_ms\": %.3f, \"ms\": %.3f, \"bases\": %d}",
+                        quote(stage), quote(Thread.currentThread().getName()), frag,
+                        (start - started) / 1e6, (end - start) / 1e6, bases));
+        }
+    }
+
+    /** a wait of a stage, to be ended once the thread continues */
+    static Wait waiting(String stage) { return new Wait(stage); }
+
+    static final class Wait {
+        final String stage;
+        final WaitEvent event = jfr ? new WaitEvent() : null;
+        final boolean timed = enabled;
+        final long start = timed ? System.nanoTime() : 0;
+
+        Wait(String stage) {
+            this.stage = stage;
+            if (event != null) event.begin();
+        }
+
+        void end() {
+            if (event != null) {
+                event.stage = stage;
+                event.commit();
+            }
+            if (timed)
+                totals(waits, stage).add(start, System.nanoTime(), 0, 0);
+        }
+    }
+
+    /** park the current thread, timing the wait */
+    static void park(Object blocker, String stage) {
+        Wait wait = waiting(stage);
+        LockSupport.park(blocker);
+        wait.end();
+    }
+
+    /** whether the tables need to be measured, which can take a scan of each table */
+    static boolean measuring() {
+        return enabled || jfr && EventType.getEventType(TableEvent.class).isEnabled();
+    }
+
+    static void table(int frag, String type, long size, long capacity, int resizes) {
+        double load = capacity==0 ? 0 : (double) size / capacity;
+        if (jfr) {
+            TableEvent event = new TableEvent();
+            event.frag = frag;
+            event.type = type;
+            event.size = size;
+            event.capacity = capacity;
+            event.load = load;
+            event.resizes = resizes;
+            event.commit();
+        }
+        if (enabled)
+            tables.add(String.format(Locale.ROOT,
+                    "{\"frag\": %d, \"type\": %s, \"size\": %d, \"capacity\": %d, \"load\": %.4f, \"resizes\": %d}",
+                    frag, quote(type), size, capacity, load, resizes));
+    }
+
+    /** write the summary as json, and stop collecting */
+    static synchronized void write(PrintStream out) {
+        enabled = false;
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\n  \"elapsed_ms\": %.3f,\n", (System.nanoTime() - started) / 1e6));
+        json.append("  \"stages\": {");
+        String sep = "\n";
+        for (Map.Entry<String, Totals> entry : spans.entrySet()) {
+            Totals totals = entry.getValue();
+            double wall = (totals.last - totals.first) / 1e9;
+            json.append(sep).append("    ").append(quote(entry.getKey())).append(String.format(Locale.ROOT,
+                    ": {\"spans\": %d, \"busy_ms\": %.3f, \"wall_ms\": %.3f, \"bytes\": %d, \"bases\": %d, "
+                            + "\"bytes_per_s\": %.0f, \"bases_per_s\": %.0f, \"threads_ms\": %s}",
+                    totals.count, totals.nanos / 1e6, wall * 1e3, totals.bytes, totals.bases,
+                    wall > 0 ? totals.bytes / wall : 0, wall > 0 ? totals.bases / wall : 0, threads(totals)));
+            sep = ",\n";
+        }
+        json.append("\n  },\n  \"waits\": {");
+        sep = "\n";
+        for (Map.Entry<String, Totals> entry : waits.entrySet()) {
+            Totals totals = entry.getValue();
+            json.append(sep).append("    ").append(quote(entry.getKey())).append(String.format(Locale.ROOT,
+                    ": {\"waits\": %d, \"ms\": %.3f, \"threads_ms\": %s}", totals.count, totals.nanos / 1e6, threads(totals)));
+            sep = ",\n";
+        }
+        json.append("\n  },\n  \"tasks\": [").append(list(tasks));
+        json.append("],\n  \"tables\": [").append(list(tables)).append("]\n}\n");
+        out.print(json);
+        out.flush();
+    }
+
+    static String threads(Totals totals) {
+        List<String> each = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : totals.threads.entrySet())
+            each.add(quote(entry.getKey()) + String.format(Locale.ROOT, ": %.3f", entry.getValue() / 1e6));
+        return "{" + String.join(", ", each) + "}";
+    }
+
+    static String list(ConcurrentLinkedQueue<String> items) {
+        return items.isEmpty() ? "" : "\n    " + String.join(",\n    ", items) + "\n  ";
+    }
+
+    static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,120 @@
+import java.lang.reflect.Field;
+import sun.misc.Unsafe;
+
+/**
+ * an open addressing hash map from long keys (eg 2-bit encoded k-mers) to int counts,
+ * stored off heap with the key and count of each entry in the same 16 byte slot,
+ * so an insert touches a single cache line and the table adds nothing to gc pressure.
+ * collisions are resolved by linear probing and an empty slot is marked by a zero count,
+ * so any long is a valid key.
+ * the memory is allocated with unsafe, which measured faster than a direct ByteBuffer,
+ * and must be released with free()
+ */
+class OffHeapMap {
+    interface Visitor {
+        void visit(long key, int count);
+    }
+
+    static final Unsafe unsafe;
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+        }
+        catch (ReflectiveOperationException ex) { throw new ExceptionInInitializerError(ex); }
+    }
+
+    static final int slotBits = 4;
+    static final float loadFactor = 0.75f;
+
+    long base;
+    int bits;
+    long mask;
+    long size;
+    /** the number of times the table has doubled */
+    int resizes;
+    long limit;
+
+    /** create a map that can hold expected keys without resizing */
+    OffHeapMap(long expected) {
+        int need = 4;
+        while ((1L << need) * loadFactor < expected)
+            need++;
+        allocate(need);
+    }
+
+    void allocate(int bits) {
+        this.bits = bits;
+        mask = (1L << bits) - 1;
+        limit = (long) ((1L << bits) * loadFactor);
+        base = unsafe.allocateMemory(1L << (bits + slotBits));
+        unsafe.setMemory(base, 1L << (bits + slotBits), (byte) 0);
+    }
+
+    /** fibonacci hashing, the high bits of the product are well mixed */
+    static long hash(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    /** the address of the slot for the key, either the slot holding it or the empty slot where it belongs */
+    long find(long key) {
+        for (long slot = hash(key) >>> (64 - bits);; slot = (slot+1) & mask) {
+            long addr = base + (slot << slotBits);
+            if (unsafe.getInt(addr+8)==0 || unsafe.getLong(addr)==key)
+                return addr;
+        }
+    }
+
+    void addTo(long key, int count) {
+        if (count==0) return;
+        long addr = find(key);
+        int prev = unsafe.getInt(addr+8);
+        unsafe.putInt(addr+8, prev + count);
+        if (prev==0) {
+            unsafe.putLong(addr, key);
+            if (++size > limit)
+                rehash();
+        }
+    }
+
+    int get(long key) {
+        return unsafe.getInt(find(key)+8);
+    }
+
+    long size() { return size; }
+    long capacity() { return 1L << bits; }
+
+    void forEach(Visitor visitor) {
+        long end = base + (1L << (bits + slotBits));
+        for (long addr = base; addr < end; addr += 1 << slotBits) {
+            int count = unsafe.getInt(addr+8);
+            if (count != 0)
+                visitor.visit(unsafe.getLong(addr), count);
+        }
+    }
+
+    /** double the capacity */
+    void rehash() {
+        resizes++;
+        long old = base, end = base + (1L << (bits + slotBits));
+        allocate(bits+1);
+        for (long addr = old; addr < end; addr += 1 << slotBits) {
+            int count = unsafe.getInt(addr+8);
+            if (count != 0) {
+                long key = unsafe.getLong(addr);
+                long next = find(key);
+                unsafe.putLong(next, key);
+                unsafe.putInt(next+8, count);
+            }
+        }
+        unsafe.freeMemory(old);
+    }
+
+    /** release the memory, the map can't be used afterwards */
+    void free() {
+        if (base != 0)
+            unsafe.freeMemory(base);
+        base = 0;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * a sequence of nucleotide codes (0 = A, 1 = C, 2 = G, 3 = T) packed 32 to a long,
+ * with the first base of each word in the high bits.
+ * a k-mer of length up to 32 spans at most 2 words and is read by shifting and masking
+ */
+class Packed {
+    long [] words;
+    int size;
+
+    Packed(int capacity) {
+        // one word of padding so that key() can always read the following word
+        words = new long[(capacity >>> 5) + 2];
+    }
+
+    int get(int index) {
+        return (int) (words[index >>> 5] >>> (62 - 2*(index & 31))) & 3;
+    }
+
+    /**
+     * Get the long key for the given offset and length, equivalent to Result.getKey
+     * (length must be between 1 and 32)
+     */
+    long key(int offset, int length) {
+        int word = offset >>> 5, shift = 2*(offset & 31);
+        long bits = words[word] << shift;
+        if (shift > 0)
+            bits |= words[word+1] >>> (64 - shift);
+        return bits >>> (64 - 2*length);
+    }
+
+    /** append num codes, growing the storage as needed, 8 at a time if swar, see Swar, or else one at a time */
+    void append(byte [] codes, int num, boolean swar) {
+        if (((size + num) >>> 5) + 2 > words.length) {
+            long [] next = new long[Math.max(words.length*2, ((size + num) >>> 5) + 2)];
+            System.arraycopy(words,0,next,0,words.length);
+            words = next;
+        }
+        int pos = size, ii = 0;
+        // 8 codes at a time, packed to 16 bits that may straddle 2 words
+        if (swar && Swar.supported)
+            for (; ii + 8 <= num; ii += 8, pos += 8) {
+                long bits = Swar.pack(Long.reverseBytes(Swar.unsafe.getLong(codes, Swar.base + ii)));
+                int word = pos >>> 5, shift = 48 - 2*(pos & 31);
+                if (shift >= 0)
+                    words[word] |= bits << shift;
+                else {
+                    words[word] |= bits >>> -shift;
+                    words[word+1] |= bits << (64 + shift);
+                }
+            }
+        for (; ii < num; ii++, pos++)
+            words[pos >>> 5] |= (long) (codes[ii] & 3) << (62 - 2*(pos & 31));
+        size = pos;
+    }
+
+    synchronized void or(int word, long bits) {
+        words[word] |= bits;
+    }
+
+    /**
+     * a sequential writer for a range of the sequence, starting at pos.
+     * the words at either end of the range may be shared with the neighbouring ranges
+     * and are merged under a lock, so fillers for disjoint ranges can run concurrently
+     */
+    class Filler {
+        final int first;
+        int pos;
+        long acc;
+
+        Filler(int pos) { this.pos = first = pos; }
+
+        void add(int code) {
+            acc |= (long) (code & 3) << (62 - 2*(pos & 31));
+            if ((++pos & 31)==0)
+                flush();
+        }
+        /** add 8 codes, packed to 16 bits with the first highest, see Swar.pack */
+        void add8(int bits) {
+            int shift = 48 - 2*(pos & 31);
+            if (shift >= 0) {
+                acc |= (long) bits << shift;
+                if (((pos += 8) & 31)==0)
+                    flush();
+            }
+            else {
+                // the first codes complete the word, and the rest start the next one
+                acc |= (long) bits >>> -shift;
+                pos = (pos | 31) + 1;
+                flush();
+                acc = (long) bits << (64 + shift);
+                pos += 8 - (shift + 16)/2;
+            }
+        }
+        /** write the word that's just been completed */
+        void flush() {
+            int word = (pos-1) >>> 5;
+            if (word << 5 < first) or(word, acc);
+            else words[word] = acc;
+            acc = 0;
+        }
+        void finish() {
+            if ((pos & 31) != 0)
+                or(pos >>> 5, acc);
+        }
+    }
+}
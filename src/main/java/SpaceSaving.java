@@ -0,0 +1,195 @@
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import java.util.Arrays;
+
+/**
+ * the space-saving summary of the most frequent long keys, using memory proportional to the capacity.
+ * when the summary is full, a new key replaces the key with the smallest count and inherits that count as its error,
+ * so a count overestimates by at most its error, and any key with a count above min() is in the summary.
+ * the entries are kept in a min heap by count, with an open addressing table from key to heap position,
+ * so an add is a probe and a sift rather than a scan.
+ * summaries are merged as in agarwal et al, mergeable summaries, with the min of each standing in for missing keys.
+ * not thread safe
+ */
+class SpaceSaving {
+    interface Visitor {
+        void visit(long key, long count, long error);
+    }
+
+    /** the most bytes per entry, with the table between 2 and 4 slots per entry */
+    static final int entryBytes = 4 + 8 + 8 + 4*(8 + 4);
+
+    final int capacity;
+    /** the heap, ordered by count, each entry holding the slot of its key in the table */
+    final int [] heap;
+    final long [] counts;
+    final long [] errors;
+    int size;
+
+    /** the table, with the heap position of each key plus one, or zero for an empty slot */
+    final long [] keys;
+    final int [] positions;
+    final int bits;
+    final int mask;
+
+    SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        heap = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        int need = 2;
+        while ((1 << need) < 2*capacity)
+            need++;
+        bits = need;
+        mask = (1 << bits) - 1;
+        keys = new long[1 << bits];
+        positions = new int[1 << bits];
+    }
+
+    int home(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    /** the slot holding the key, or the empty slot where it belongs */
+    int find(long key) {
+        int slot = home(key);
+        while (positions[slot] != 0 && keys[slot] != key)
+            slot = (slot+1) & mask;
+        return slot;
+    }
+
+    /** the smallest count once the summary is full, ie the most that a key outside the summary can have */
+    long min() {
+        return size < capacity ? 0 : counts[0];
+    }
+
+    int size() { return size; }
+
+    void add(long key, long count) {
+        int slot = find(key);
+        if (positions[slot] != 0) {
+            int pos = positions[slot] - 1;
+            counts[pos] += count;
+            down(pos);
+        }
+        else if (size < capacity) {
+            keys[slot] = key;
+            heap[size] = slot;
+            counts[size] = count;
+            errors[size] = 0;
+            positions[slot] = ++size;
+            up(size-1);
+        }
+        else {
+            long min = counts[0];
+            remove(heap[0]);
+            slot = find(key);
+            keys[slot] = key;
+            positions[slot] = 1;
+            heap[0] = slot;
+            counts[0] = min + count;
+            errors[0] = min;
+            down(0);
+        }
+    }
+
+    /** the count of the key, or zero if it's not in the summary */
+    long get(long key) {
+        int slot = find(key);
+        return positions[slot]==0 ? 0 : counts[positions[slot]-1];
+    }
+
+    /** the bound on the overcount of the key, or zero if it's not in the summary */
+    long error(long key) {
+        int slot = find(key);
+        return positions[slot]==0 ? 0 : errors[positions[slot]-1];
+    }
+
+    void forEach(Visitor visitor) {
+        for (int pos=0; pos < size; pos++)
+            visitor.visit(keys[heap[pos]], counts[pos], errors[pos]);
+    }
+
+    /** add the entries of the other summary, keeping the capacity largest */
+    void merge(SpaceSaving other) {
+        long min = min(), otherMin = other.min();
+        int num = 0;
+        long [] k = new long[size + other.size], c = new long[k.length], e = new long[k.length];
+        for (int pos=0; pos < size; pos++) {
+            long key = keys[heap[pos]];
+            int slot = other.find(key);
+            boolean both = other.positions[slot] != 0;
+            k[num] = key;
+            c[num] = counts[pos] + (both ? other.counts[other.positions[slot]-1] : otherMin);
+            e[num++] = errors[pos] + (both ? other.errors[other.positions[slot]-1] : otherMin);
+        }
+        for (int pos=0; pos < other.size; pos++) {
+            long key = other.keys[other.heap[pos]];
+            if (positions[find(key)] != 0) continue;
+            k[num] = key;
+            c[num] = other.counts[pos] + min;
+            e[num++] = other.errors[pos] + min;
+        }
+        // negated counts and their entries, so a single sort of primitives orders by count descending
+        long [] order = new long[num], index = new long[num];
+        for (int ii=0; ii < num; ii++) {
+            order[ii] = -c[ii];
+            index[ii] = ii;
+        }
+        LongArrays.quickSort(order, index, 0, num);
+        Arrays.fill(positions, 0);
+        size = 0;
+        for (int ii=0; ii < Math.min(num, capacity); ii++) {
+            int entry = (int) index[ii];
+            int slot = find(k[entry]);
+            keys[slot] = k[entry];
+            heap[size] = slot;
+            counts[size] = c[entry];
+            errors[size] = e[entry];
+            positions[slot] = ++size;
+            up(size-1);
+        }
+    }
+
+    void swap(int a, int b) {
+        int slot = heap[a]; heap[a] = heap[b]; heap[b] = slot;
+        long count = counts[a]; counts[a] = counts[b]; counts[b] = count;
+        long error = errors[a]; errors[a] = errors[b]; errors[b] = error;
+        positions[heap[a]] = a+1;
+        positions[heap[b]] = b+1;
+    }
+
+    void up(int pos) {
+        for (int parent; pos > 0 && counts[parent = (pos-1) >>> 1] > counts[pos]; pos = parent)
+            swap(pos, parent);
+    }
+
+    void down(int pos) {
+        for (int child; (child = 2*pos + 1) < size; pos = child) {
+            if (child+1 < size && counts[child+1] < counts[child])
+                child++;
+            if (counts[pos] <= counts[child])
+                return;
+            swap(pos, child);
+        }
+    }
+
+    /** remove the key in the slot from the table, shifting back the keys that follow it in the probe sequence */
+    void remove(int slot) {
+        for (;;) {
+            int last = slot;
+            for (;;) {
+                slot = (slot+1) & mask;
+                if (positions[slot]==0) {
+                    positions[last] = 0;
+                    return;
+                }
+                int home = home(keys[slot]);
+                if (last <= slot ? last >= home || home > slot : last >= home && home > slot)
+                    break;
+            }
+            keys[last] = keys[slot];
+            positions[last] = positions[slot];
+            heap[positions[last]-1] = last;
+        }
+    }
+}
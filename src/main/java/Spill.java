@@ -0,0 +1,207 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a temporary file of runs of the counts of k-mers of up to 32 bases, each run holding distinct keys in unsigned order.
+ * runs are appended with buffered sequential writes by a single thread, and once the file is finished it's memory
+ * mapped for reading, so a run is read without loading it onto the heap, and the keys of any range of key prefixes
+ * are a contiguous slice of each run, found with a binary search.
+ * the layout of each run, little endian and aligned so no value straddles the mapped segments, is its keys and then
+ * their counts, padded to a multiple of 8 bytes.
+ * the runs may be shared, so the file is reference counted, and it's deleted when it's closed by every holder,
+ * or failing that when the jvm exits
+ */
+class Spill implements Closeable {
+    /** log2 of the size of each mapped segment */
+    static final int segBits = 30;
+
+    /** a run in the file, ie size distinct keys in unsigned order and their counts */
+    static class Run {
+        final Spill file;
+        final long keys, counts;
+        final int size;
+
+        Run(Spill file, long keys, int size) {
+            this.file = file;
+            this.keys = keys;
+            this.size = size;
+            counts = keys + 8L*size;
+        }
+
+        long key(int index) { return file.getLong(keys + 8L*index); }
+        int count(int index) { return file.getInt(counts + 4L*index); }
+
+        /** the index of the first key that's not less than key, or size if there's none */
+        int lowerBound(long key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (KmerIndex.less(key(mid), key)) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /** the index of the first key that's greater than key, or size if there's none */
+        int upperBound(long key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (KmerIndex.less(key, key(mid))) hi = mid;
+                else lo = mid + 1;
+            }
+            return lo;
+        }
+
+        /** copy the keys and counts from index from up to index to into the arrays, starting at at */
+        void read(int from, int to, long [] keys, int [] counts, int at) {
+            file.getLongs(this.keys + 8L*from, keys, at, to - from);
+            file.getInts(this.counts + 4L*from, counts, at, to - from);
+        }
+
+        /** the count of the key, or zero if it's not in the run */
+        int get(long key) {
+            int index = lowerBound(key);
+            return index < size && key(index)==key ? count(index):0;
+        }
+    }
+
+    final FileChannel channel;
+    final List<Run> runs = new ArrayList<>();
+    ByteBuffer buf = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+    long pos;
+    MappedByteBuffer [] segs;
+    int refs = 1;
+
+    /** a new file in the directory */
+    Spill(Path dir) throws IOException {
+        channel = FileChannel.open(Files.createTempFile(dir, "knucleotide-", ".spill"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /** append the first n keys, which must be distinct and in unsigned order, and their counts as a run */
+    Run write(long [] keys, int [] counts, int n) throws IOException {
+        Run run = new Run(this, pos, n);
+        for (int ii=0; ii < n; ) {
+            LongBuffer longs = room(8).asLongBuffer();
+            int num = Math.min(n - ii, longs.remaining());
+            longs.put(keys, ii, num);
+            buf.position(buf.position() + 8*num);
+            ii += num;
+        }
+        for (int ii=0; ii < n; ) {
+            IntBuffer ints = room(4).asIntBuffer();
+            int num = Math.min(n - ii, ints.remaining());
+            ints.put(counts, ii, num);
+            buf.position(buf.position() + 4*num);
+            ii += num;
+        }
+        if ((n & 1) != 0)
+            room(4).putInt(0);
+        pos = run.counts + 4L*n + 4*(n & 1);
+        runs.add(run);
+        return run;
+    }
+
+    /** the buffer, after writing it to the channel if it doesn't have room for another value */
+    ByteBuffer room(int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf);
+            buf.clear();
+        }
+        return buf;
+    }
+
+    /** whether the file has been finished, so no more runs can be written */
+    synchronized boolean finished() {
+        return buf==null;
+    }
+
+    /** another holder of the file, which must close it too */
+    synchronized Spill retain() {
+        refs++;
+        return this;
+    }
+
+    /** write what's buffered and map the file for reading, after which no more runs can be written */
+    synchronized void finish() {
+        if (segs != null) return;
+        try {
+            room(buf.capacity());
+            buf = null;
+            segs = new MappedByteBuffer[(int) ((pos + (1L << segBits) - 1) >>> segBits)];
+            for (int ii=0; ii < segs.length; ii++) {
+                long start = (long) ii << segBits;
+                segs[ii] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << segBits, pos - start));
+                segs[ii].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    long getLong(long pos) { return segs[(int) (pos >>> segBits)].getLong((int) (pos & ((1L << segBits) - 1))); }
+    int getInt(long pos) { return segs[(int) (pos >>> segBits)].getInt((int) (pos & ((1L << segBits) - 1))); }
+
+    /** copy len longs from pos, with bulk copies from each segment they span */
+    void getLongs(long pos, long [] dst, int off, int len) {
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int num = Math.min(len, seg.remaining() / 8);
+            seg.asLongBuffer().get(dst, off, num);
+            pos += 8L*num;
+            off += num;
+            len -= num;
+        }
+    }
+
+    /** copy len ints from pos, with bulk copies from each segment they span */
+    void getInts(long pos, int [] dst, int off, int len) {
+        while (len > 0) {
+            ByteBuffer seg = segment(pos);
+            int num = Math.min(len, seg.remaining() / 4);
+            seg.asIntBuffer().get(dst, off, num);
+            pos += 4L*num;
+            off += num;
+            len -= num;
+        }
+    }
+
+    /** a view of the segment holding pos, from pos to the end of the segment */
+    ByteBuffer segment(long pos) {
+        ByteBuffer seg = segs[(int) (pos >>> segBits)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        seg.position((int) (pos & ((1L << segBits) - 1)));
+        return seg;
+    }
+
+    /** the bytes written */
+    long size() { return pos; }
+
+    /** delete the file once every holder has closed it, the mapping is released when it's collected */
+    public synchronized void close() {
+        if (--refs > 0) return;
+        segs = null;
+        buf = null;
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
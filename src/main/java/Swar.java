@@ -0,0 +1,89 @@
+import java.nio.ByteOrder;
+import sun.misc.Unsafe;
+
+/**
+ * decoding fasta text 8 bytes at a time, with each byte a lane of a long (simd within a register),
+ * giving exactly the results of the byte at a time loops: a newline is dropped, a '>' ends the sequence,
+ * and any other byte becomes knucleotide.codes[byte & 7], ie A, C, G and T in either case are 0 to 3
+ * and anything else is -1.
+ * the low 3 bits of every lane are decoded at once: with b0, b1 and b2 the bits, the bases are the lanes where
+ * (b0 & ~b2) | (b2 & ~(b0 ^ b1)), ie 1, 3, 4 and 7, and their codes are (b2 << 1) | (b1 ^ b2).
+ * a word with no newline is written as a long, a word with a single newline (nearly all the rest, for lines
+ * of 60) is compacted with a shift, and the odd word with more is done a byte at a time.
+ * arrays are read with unsafe in native order, which must be little endian
+ */
+class Swar {
+    static final Unsafe unsafe = OffHeapMap.unsafe;
+    static final long base = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+    /** whether the arrays can be read a word at a time, ie the first byte is the lowest lane */
+    static final boolean supported = ByteOrder.nativeOrder()==ByteOrder.LITTLE_ENDIAN;
+
+    static final long ones = 0x0101010101010101L;
+    static final long highs = 0x8080808080808080L;
+    static final long lows = 0x7f7f7f7f7f7f7f7fL;
+    static final long newlines = knucleotide.nln * ones;
+    static final long markers = knucleotide.grt * ones;
+
+    /** the high bit of each lane of the word that equals the lanes of the pattern, with no carries between lanes */
+    static long equal(long word, long pattern) {
+        long diff = word ^ pattern;
+        return ~(((diff & lows) + lows) | diff) & highs;
+    }
+
+    /** the code of each lane, or 0xff if it isn't a base */
+    static long codes(long word) {
+        long b0 = word & ones, b1 = (word >>> 1) & ones, b2 = (word >>> 2) & ones;
+        long bases = (b0 & ~b2) | (b2 & ~(b0 ^ b1));
+        return (b2 << 1) | (b1 ^ b2) | (bases ^ ones) * 0xff;
+    }
+
+    /** the number of newlines in the word */
+    static int newlines(long word) {
+        return Long.bitCount(equal(word, newlines));
+    }
+
+    /**
+     * the 2 bit codes of the lanes, the first in the highest lane (ie big endian), packed into 16 bits
+     * in the same order, as Packed stores them, with the codes that aren't bases masked to 3
+     */
+    static int pack(long codes) {
+        long bits = codes & 0x0303030303030303L;
+        bits = (bits | (bits >>> 6)) & 0x000f000f000f000fL;
+        bits = (bits | (bits >>> 12)) & 0x000000ff000000ffL;
+        return (int) ((bits | (bits >>> 24)) & 0xffff);
+    }
+
+    /**
+     * decode the text in [start,end) of data to codes, in place from the start of the array,
+     * stopping at a '>', and return the number of codes, as Reader.Wrapper.makeScalar does
+     */
+    static int decode(byte [] data, int start, int end) {
+        int ii = start, kk = 0;
+        if (supported)
+            for (; ii + 8 <= end; ii += 8) {
+                long word = unsafe.getLong(data, base + ii);
+                if (equal(word, markers) != 0) break;
+                long codes = codes(word), lines = equal(word, newlines);
+                // the codes are written at or before the word, which has already been read
+                if (lines==0) {
+                    unsafe.putLong(data, base + kk, codes);
+                    kk += 8;
+                }
+                else if ((lines & (lines - 1))==0) {
+                    long below = (lines >>> 7) - 1;
+                    unsafe.putLong(data, base + kk, (codes & below) | ((codes >>> 8) & ~below));
+                    kk += 7;
+                }
+                else
+                    for (int jj=ii; jj < ii + 8; jj++)
+                        if (data[jj] != knucleotide.nln) data[kk++] = knucleotide.codes[data[jj] & 0x7];
+            }
+        for (; ii < end; ii++) {
+            byte val = data[ii];
+            if (val==knucleotide.grt) break;
+            if (val==knucleotide.nln) continue;
+            data[kk++] = knucleotide.codes[val & 0x7];
+        }
+        return kk;
+    }
+}
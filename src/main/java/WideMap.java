@@ -0,0 +1,145 @@
+/**
+ * an off heap hash map from multi-word keys to int counts, for k-mers longer than fit in a single long.
+ * each slot holds the width words of the key followed by the count, so an insert touches one or two cache lines.
+ * like OffHeapMap, collisions are resolved by linear probing, a zero count marks an empty slot,
+ * and the memory must be released with free()
+ */
+class WideMap {
+    interface Visitor {
+        /** the key array is reused between calls */
+        void visit(long [] key, int count);
+    }
+
+    static final sun.misc.Unsafe unsafe = OffHeapMap.unsafe;
+    static final float loadFactor = 0.75f;
+
+    /** the number of longs per key */
+    final int width;
+    /** the number of bytes per slot */
+    final int stride;
+    long base;
+    int bits;
+    long mask;
+    long size;
+    /** the number of times the table has doubled */
+    int resizes;
+    long limit;
+
+    /** create a map for keys of width longs that can hold expected keys without resizing */
+    WideMap(int width, long expected) {
+        this.width = width;
+        stride = (width+1) << 3;
+        int need = 4;
+        while ((1L << need) * loadFactor < expected)
+            need++;
+        allocate(need);
+    }
+
+    void allocate(int bits) {
+        this.bits = bits;
+        mask = (1L << bits) - 1;
+        limit = (long) ((1L << bits) * loadFactor);
+        base = unsafe.allocateMemory((long) stride << bits);
+        unsafe.setMemory(base, (long) stride << bits, (byte) 0);
+    }
+
+    /** fibonacci hashing of each word in turn, the high bits of the result are well mixed */
+    static long hash(long [] key, int width) {
+        long hash = 0;
+        for (int ii=0; ii < width; ii++)
+            hash = (hash + key[ii]) * 0x9E3779B97F4A7C15L;
+        return hash;
+    }
+
+    boolean matches(long addr, long [] key) {
+        for (int ii=0; ii < width; ii++)
+            if (unsafe.getLong(addr + (ii << 3)) != key[ii])
+                return false;
+        return true;
+    }
+
+    /** the address of the slot for the key, either the slot holding it or the empty slot where it belongs */
+    long find(long [] key) {
+        for (long slot = hash(key, width) >>> (64 - bits);; slot = (slot+1) & mask) {
+            long addr = base + slot*stride;
+            if (unsafe.getInt(addr + stride - 8)==0 || matches(addr, key))
+                return addr;
+        }
+    }
+
+    void addTo(long [] key, int count) {
+        if (count==0) return;
+        long addr = find(key);
+        int prev = unsafe.getInt(addr + stride - 8);
+        unsafe.putInt(addr + stride - 8, prev + count);
+        if (prev==0) {
+            for (int ii=0; ii < width; ii++)
+                unsafe.putLong(addr + (ii << 3), key[ii]);
+            if (++size > limit)
+                rehash();
+        }
+    }
+
+    /** addTo for a key of width 2, without the key array, ie the common case of 33 to 64 bases */
+    void addTo(long hi, long lo, int count) {
+        long addr;
+        for (long slot = ((hi * 0x9E3779B97F4A7C15L + lo) * 0x9E3779B97F4A7C15L) >>> (64 - bits);; slot = (slot+1) & mask) {
+            addr = base + slot*24;
+            if (unsafe.getInt(addr+16)==0 || unsafe.getLong(addr)==hi && unsafe.getLong(addr+8)==lo)
+                break;
+        }
+        int prev = unsafe.getInt(addr+16);
+        unsafe.putInt(addr+16, prev + count);
+        if (prev==0) {
+            unsafe.putLong(addr, hi);
+            unsafe.putLong(addr+8, lo);
+            if (++size > limit)
+                rehash();
+        }
+    }
+
+    int get(long [] key) {
+        return unsafe.getInt(find(key) + stride - 8);
+    }
+
+    long size() { return size; }
+    long capacity() { return 1L << bits; }
+
+    void forEach(Visitor visitor) {
+        long [] key = new long[width];
+        long end = base + ((long) stride << bits);
+        for (long addr = base; addr < end; addr += stride) {
+            int count = unsafe.getInt(addr + stride - 8);
+            if (count != 0) {
+                for (int ii=0; ii < width; ii++)
+                    key[ii] = unsafe.getLong(addr + (ii << 3));
+                visitor.visit(key, count);
+            }
+        }
+    }
+
+    /** double the capacity */
+    void rehash() {
+        resizes++;
+        long old = base, end = base + ((long) stride << bits);
+        allocate(bits+1);
+        long [] key = new long[width];
+        for (long addr = old; addr < end; addr += stride) {
+            int count = unsafe.getInt(addr + stride - 8);
+            if (count != 0) {
+                for (int ii=0; ii < width; ii++)
+                    key[ii] = unsafe.getLong(addr + (ii << 3));
+                long next = find(key);
+                unsafe.copyMemory(addr, next, stride);
+            }
+        }
+        unsafe.freeMemory(old);
+    }
+
+    /** release the memory, the map can't be used afterwards */
+    void free() {
+        if (base != 0)
+            unsafe.freeMemory(base);
+        base = 0;
+    }
+}
@@ -7,7 +7,13 @@
  */
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -16,19 +22,28 @@ public class fasta {
 
     static final int LINE_LENGTH = 60;
     static final int LINE_COUNT = 1024;
-    static final NucleotideSelector[] WORKERS 
-            = new NucleotideSelector[
-                    Runtime.getRuntime().availableProcessors() > 1 
-                    ? Runtime.getRuntime().availableProcessors() - 1 
-                    : 1];
-    static final AtomicInteger IN = new AtomicInteger();
-    static final AtomicInteger OUT = new AtomicInteger();
     static final int BUFFERS_IN_PLAY = 6;
     static final int IM = 139968;
     static final int IA = 3877;
     static final int IC = 29573;
     static final float ONE_OVER_IM = 1f / IM;
-    static int last = 42;
+    final NucleotideSelector[] WORKERS 
+            = new NucleotideSelector[
+                    Runtime.getRuntime().availableProcessors() > 1 
+                    ? Runtime.getRuntime().availableProcessors() - 1 
+                    : 1];
+    final AtomicInteger IN = new AtomicInteger();
+    final AtomicInteger OUT = new AtomicInteger();
+    /**
+     * whether the writer keeps the arrays it's given, in which case each
+     * buffer gets a new array once it's written rather than being refilled
+     */
+    final boolean handOff;
+    int last = 42;
+
+    public fasta(final boolean handOff) {
+        this.handOff = handOff;
+    }
 
     public static void main(String[] args) {
         int n = 1000;
@@ -36,12 +51,30 @@ public class fasta {
         if (args.length > 0) {
             n = Integer.parseInt(args[0]);
         }
+        // a file named after the length is written through a FileChannel, rather than the buffering of System.out
+        try (OutputStream writer = args.length > 1
+                ? Channels.newOutputStream(FileChannel.open(Paths.get(args[1])
+                        , StandardOpenOption.CREATE
+                        , StandardOpenOption.WRITE
+                        , StandardOpenOption.TRUNCATE_EXISTING))
+                : System.out;) {
+            new fasta(false).write(writer, n);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+     }
+
+    /**
+     * write the three sequences for n. each instance generates a single
+     * output, with its own workers, which exit once it's written
+     */
+    public void write(final OutputStream writer, final int n) throws IOException {
         for (int i = 0; i < WORKERS.length; i++) {
             WORKERS[i] = new NucleotideSelector();
             WORKERS[i].setDaemon(true);
             WORKERS[i].start();
         }
-        try (OutputStream writer = System.out;) {
+        try {
             final int bufferSize = LINE_COUNT * LINE_LENGTH;
 
             for (int i = 0; i < BUFFERS_IN_PLAY; i++) {
@@ -68,26 +101,41 @@ public class fasta {
             for (int i = 0; i < BUFFERS_IN_PLAY; i++) {
                 writeBuffer(writer);
             }
-        } catch (IOException ex) {
+        } finally {
+            for (NucleotideSelector worker : WORKERS) {
+                worker.interrupt();
+            }
         }
-     }
+    }
 
-    private static void lineFillALU(AbstractBuffer buffer) {
+    /**
+     * write the buffer's nucleotides, giving it a new array if the writer
+     * keeps the one it's given
+     */
+    private AbstractBuffer write(final OutputStream writer
+            , final AbstractBuffer buffer) throws IOException {
+        writer.write(buffer.nucleotides);
+        if (handOff) {
+            buffer.nucleotides = buffer.lines();
+        }
+        return buffer;
+    }
+
+    private void lineFillALU(AbstractBuffer buffer) {
         WORKERS[OUT.incrementAndGet() % WORKERS.length].put(buffer);
     }
 
-    private static void bufferFillALU(OutputStream writer
+    private void bufferFillALU(OutputStream writer
             , int buffers) throws IOException {
         AbstractBuffer buffer;
 
         for (int i = 0; i < buffers; i++) {
             buffer = WORKERS[IN.incrementAndGet() % WORKERS.length].take();
-            writer.write(buffer.nucleotides);
-            lineFillALU(buffer);
+            lineFillALU(write(writer, buffer));
         }
     }
 
-    private static void speciesFillALU(final OutputStream writer
+    private void speciesFillALU(final OutputStream writer
             , final int nChars
             , final String name) throws IOException {
         final int bufferSize = LINE_COUNT * LINE_LENGTH;
@@ -106,26 +154,47 @@ public class fasta {
         }
     }
 
-    private static void lineFillRandom(Buffer buffer) {
-        for (int i = 0; i < buffer.randoms.length; i++) {
-            last = (last * IA + IC) % IM;
-            buffer.randoms[i] = last * ONE_OVER_IM;
-        }
+    /**
+     * hand the buffer its seed, ie the state of the generator before its first
+     * random, and jump the generator past it, so the workers generate the
+     * randoms of the buffers in parallel and the sequence is unchanged
+     */
+    private void lineFillRandom(Buffer buffer) {
+        buffer.seed = last;
+        last = skip(last, buffer.nChars);
         WORKERS[OUT.incrementAndGet() % WORKERS.length].put(buffer);
     }
 
-    private static void bufferFillRandom(OutputStream writer
+    /**
+     * the state of the generator n steps after state. a step is the affine
+     * map x -> IA*x + IC mod IM, so n steps are the map composed with itself
+     * by repeated squaring, in log n steps
+     */
+    static int skip(final int state, int n) {
+        long a = IA, c = IC, stepA = 1, stepC = 0;
+
+        for (; n > 0; n >>= 1) {
+            if ((n & 1) != 0) {
+                stepA = stepA * a % IM;
+                stepC = (stepC * a + c) % IM;
+            }
+            c = (c * a + c) % IM;
+            a = a * a % IM;
+        }
+        return (int) ((stepA * state + stepC) % IM);
+    }
+
+    private void bufferFillRandom(OutputStream writer
             , int loops) throws IOException {
         AbstractBuffer buffer;
 
         for (int i = 0; i < loops; i++) {
             buffer = WORKERS[IN.incrementAndGet() % WORKERS.length].take();
-            writer.write(buffer.nucleotides);
-            lineFillRandom((Buffer) buffer);
+            lineFillRandom((Buffer) write(writer, buffer));
         }
     }
 
-    private static void speciesFillRandom(final OutputStream writer
+    private void speciesFillRandom(final OutputStream writer
             , final int nChars
             , final String name
             , final boolean isIUB) throws IOException {
@@ -142,11 +211,82 @@ public class fasta {
         }
     }
 
-    private static void writeBuffer(OutputStream writer) throws IOException {
-        writer.write(
-                WORKERS[IN.incrementAndGet() % WORKERS.length]
-                        .take()
-                        .nucleotides);
+    private void writeBuffer(OutputStream writer) throws IOException {
+        write(writer, WORKERS[IN.incrementAndGet() % WORKERS.length].take());
+    }
+
+    /**
+     * the output for n as a sequence of buffers, generated on another thread,
+     * so a consumer in the same jvm reads it with no pipe and no copy. each
+     * array is handed over, ie the generator never writes to it again
+     */
+    public static class Source extends OutputStream {
+
+        static final ByteBuffer END = ByteBuffer.allocate(0);
+        private final BlockingQueue<ByteBuffer> 
+                queue = new ArrayBlockingQueue<>(BUFFERS_IN_PLAY);
+        private final Thread thread;
+        private volatile IOException failure;
+        private boolean done;
+
+        public Source(final int n) {
+            thread = new Thread(() -> {
+                try {
+                    new fasta(true).write(this, n);
+                    queue.put(END);
+                } catch (InterruptedIOException | InterruptedException ex) {
+                    // closed, so nothing is reading
+                } catch (IOException | RuntimeException ex) {
+                    failure = ex instanceof IOException
+                            ? (IOException) ex : new IOException(ex);
+                    queue.clear();
+                    queue.offer(END);
+                }
+            }, "fasta");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** the next buffer, or null once the output is complete */
+        public ByteBuffer next() throws IOException {
+            if (done) {
+                return null;
+            }
+            final ByteBuffer buffer;
+            try {
+                buffer = queue.take();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            if (buffer != END) {
+                return buffer;
+            }
+            done = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b});
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                queue.put(ByteBuffer.wrap(b, off, len));
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** stop generating, eg if the consumer fails */
+        @Override
+        public void close() {
+            thread.interrupt();
+        }
     }
 
     public static class NucleotideSelector extends Thread {
@@ -191,25 +331,32 @@ public class fasta {
         final int LINE_LENGTH;
         final int LINE_COUNT;
         byte[] chars;
-        final byte[] nucleotides;
+        byte[] nucleotides;
         final int CHARS_LEFTOVER;
 
         public AbstractBuffer(final int lineLength, final int nChars) {
             LINE_LENGTH = lineLength;
-            final int outputLineLength = lineLength + 1;
             LINE_COUNT = nChars / lineLength;
             CHARS_LEFTOVER = nChars % lineLength;
+            nucleotides = lines();
+        }
+
+        /** a new array for the nucleotides, with the newlines in place */
+        final byte[] lines() {
+            final int outputLineLength = LINE_LENGTH + 1;
             final int nucleotidesSize 
-                    = nChars + LINE_COUNT + (CHARS_LEFTOVER == 0 ? 0 : 1);
+                    = LINE_COUNT * outputLineLength
+                    + (CHARS_LEFTOVER == 0 ? 0 : CHARS_LEFTOVER + 1);
             final int lastNucleotide = nucleotidesSize - 1;
+            final byte[] lines = new byte[nucleotidesSize];
 
-            nucleotides = new byte[nucleotidesSize];
-            for (int i = lineLength
+            for (int i = LINE_LENGTH
                     ; i < lastNucleotide
                     ; i += outputLineLength) {
-                nucleotides[i] = '\n';
+                lines[i] = '\n';
             }
-            nucleotides[nucleotides.length - 1] = '\n';
+            lines[lines.length - 1] = '\n';
+            return lines;
         }
 
         public abstract void selectNucleotides();
@@ -287,8 +434,9 @@ public class fasta {
             0.1975473066391,
             0.3015094502008};
         final float[] probs;
-        final float[] randoms;
+        final int nChars;
         final int charsInFullLines;
+        int seed;
 
         public Buffer(final boolean isIUB
                 , final int lineLength
@@ -304,7 +452,7 @@ public class fasta {
                 probs[i] = (float) cp;
             }
             probs[probs.length - 1] = 2f;
-            randoms = new float[nChars];
+            this.nChars = nChars;
             charsInFullLines = (nChars / lineLength) * lineLength;
         }
 
@@ -313,17 +461,20 @@ public class fasta {
             int i, j, m;
             float r;
             int k;
+            int random = seed;
 
-            for (i = 0, j = 0; i < charsInFullLines; j++) {
+            for (i = 0, j = 0; i < charsInFullLines; i += LINE_LENGTH, j++) {
                 for (k = 0; k < LINE_LENGTH; k++) {
-                    r = randoms[i++];
+                    random = (random * IA + IC) % IM;
+                    r = random * ONE_OVER_IM;
                     for (m = 0; probs[m] < r; m++) {
                     }
                     nucleotides[j++] = chars[m];
                 }
             }
             for (k = 0; k < CHARS_LEFTOVER; k++) {
-                r = randoms[i++];
+                random = (random * IA + IC) % IM;
+                r = random * ONE_OVER_IM;
                 for (m = 0; probs[m] < r; m++) {
                 }
                 nucleotides[j++] = chars[m];
@@ -23,41 +23,143 @@
 
 */
 
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMaps;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap.SimpleEntry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongUnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
- * read a fasta file from standard input and calculate statistics
+ * read a fasta file from standard input (or the file named as the first argument) and calculate statistics
  * note: this code is intended to be run on java 11 with `-Xms2G -Xmx2G`
  */
 public class knucleotide {
     static final byte[] codes = { -1, 0, -1, 1, 3, -1, -1, 2 };
     static final char[] nucleotides = { 'A', 'C', 'G', 'T' };
     static int nproc = Runtime.getRuntime().availableProcessors();
-    byte [] seq;
-    int total;
+    Packed seq;
+    long total;
+    /** the bases at the start of seq that are only read for the windows that end after them, see Shards */
+    int overlap;
 
-    static class Result extends Long2IntOpenHashMap {
-        int frag;
+    /** what the keys of a length rolled from a sequence are counted in, ie a table or a Router, see Rolling.count */
+    interface Sink {
+        /** read the bases from start, and count the keys that end in [first,to) */
+        void roll(long [] words, long mask, int start, int first, int to);
+        /**
+         * roll, counting each key together with its reverse complement, ie whichever of the two is less.
+         * the reverse complement is rolled alongside the key, with the complement of each base entering at the top
+         */
+        void rollCanonical(long [] words, long mask, int start, int first, int to);
+    }
 
-        Result() { super(1<<10); }
-        
-        Result reduce(Result map2) {
-            map2.forEach((key, value) -> addTo(key, value));
-            return this;
+    /**
+     * a sink for keys of up to 32 bases, which are rolled by the loop written once here and passed to add.
+     * Dense and Sorted keep copies that increment or append in place, since in a run that mixes tables the call
+     * to add isn't inlined, which costs them about a fifth of the time of a count (see bench.Pipeline)
+     */
+    interface KeySink extends Sink {
+        void add(long key, int count);
+
+        default void roll(long [] words, long mask, int start, int first, int to) {
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0;
+            for (; pos < to; ) {
+                key = (key << 2) | (word >>> 62);
+                word <<= 2;
+                if (pos >= first)
+                    add(key & mask, 1);
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
         }
+        /** the length is that of the mask, so the complement enters 2 bits below its top */
+        default void rollCanonical(long [] words, long mask, int start, int first, int to) {
+            int shift = Long.bitCount(mask) - 2;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0, rc = 0;
+            for (; pos < to; ) {
+                long code = word >>> 62;
+                key = (key << 2) | code;
+                rc = (rc >>> 2) | ((code ^ 3) << shift);
+                word <<= 2;
+                if (pos >= first)
+                    add(Result.canonical(key & mask, rc), 1);
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+        }
+    }
+
+    /** the counts of the fragments of a single length, either a Table being counted or a saved Indexed */
+    abstract static class Result {
+        int frag;
+
+        abstract int size();
+        /** the number of keys the table has room for, for the metrics */
+        long capacity() { return size(); }
+        /** the number of times the table has grown, for the metrics */
+        int resizes() { return 0; }
         /**
          * Get the long key for given byte array of codes at given offset and length
          * (length must be less than 32)
@@ -69,49 +171,1998 @@ public class knucleotide {
             }
             return key;
         }
-        Result create(knucleotide knuc, int offset, int frag) {
-            byte [] seq = knuc.seq;
+        /** the empty result best suited to the fragment length, using the default options */
+        static Table of(int frag) {
+            return of(frag, new Options());
+        }
+        /** the empty result best suited to the fragment length, with long fragments stored in the table option */
+        static Table of(int frag, Options opts) {
+            return of(frag, opts, Long.MAX_VALUE);
+        }
+        /**
+         * the empty result best suited to the fragment length and the number of windows that will be counted,
+         * ie a short sequence doesn't get a dense table that would be mostly empty
+         */
+        static Table of(int frag, Options opts, long windows) {
+            Table result;
+            long expected = opts.expected > 0 ? opts.expected : Math.min(windows, 1<<10);
+            boolean external = opts.engine.equals("external");
+            // a dense table's size is fixed, but it still has to fit the budget of an external count
+            if (dense(frag, windows) && ! (external && 4L << 2*frag > External.share(opts))) result = new Dense(frag);
+            else if (frag > 32) result = new Wide(frag, expected);
+            else if (opts.engine.equals("sort")) result = new Sorted();
+            else if (external) result = new External(frag, opts);
+            else if (opts.table.equals("hash")) result = new Hashed(expected);
+            else if (opts.table.equals("offheap")) result = new OffHeap(expected);
+            else if (opts.table.equals("sketch") && windows < Sketch.bytes(opts)/16) result = new Hashed(expected);
+            else if (opts.table.equals("sketch")) result = new Sketch(opts);
+            else throw new IllegalArgumentException("unknown table: " + opts.table);
+            result.frag = frag;
+            return result;
+        }
+        /** whether a table for the length is a Dense array, ie it's short enough that every key fits */
+        static boolean dense(int frag, long windows) {
+            return frag <= Dense.maxFrag && 1L << 2*frag <= Math.max(windows, 1<<8);
+        }
+        /** the reverse complement of a key of up to 32 bases, ie complement the bases and reverse the pairs of bits */
+        static long reverseComplement(long key, int frag) {
+            long bits = Long.reverse(~key);
+            bits = ((bits & 0x5555555555555555L) << 1) | ((bits >>> 1) & 0x5555555555555555L);
+            return bits >>> (64 - 2*frag);
+        }
+        /** the lesser of a key and its reverse complement, unsigned so 32 base keys compare correctly, and branch free */
+        static long canonical(long key, long rc) {
+            return Math.min(key + Long.MIN_VALUE, rc + Long.MIN_VALUE) - Long.MIN_VALUE;
+        }
+        String writeFrequencies(float totalCount) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                write(new Output("text", null), totalCount, bytes);
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+        /** write the frequencies to the stream in the output's format, see Output */
+        abstract void write(Output output, float totalCount, OutputStream out) throws IOException;
+        /** release any memory that isn't managed by the gc, the result can't be used afterwards */
+        void free() {}
+        /** the count for a fragment given as an array of codes, or zero if it's not the length of this result */
+        abstract int count(byte [] codes);
+        /** the bound on the overcount of count() for approximate results, zero when the counts are exact */
+        long error() { return 0; }
+        /** complete any deferred work, eg sorting, so it's done by the counting thread rather than when merging */
+        void seal() {}
+    }
+
+    /** a result that keys are counted in, see Counts for up to 32 bases and Wide for longer */
+    abstract static class Table extends Result implements Sink {
+        /** add the counts of another result of the same length */
+        abstract Table reduce(Result map2);
+    }
+
+    /** the counts of fragments of up to 32 bases as read, each keyed by a single long */
+    interface Keyed {
+        interface Visitor {
+            void visit(long key, int count);
+        }
+
+        int get(long key);
+        void forEach(Visitor visitor);
+    }
+
+    /** a table of fragments of up to 32 bases, each keyed by a single long */
+    abstract static class Counts extends Table implements KeySink, Keyed {
+        Table reduce(Result map2) {
+            ((Keyed) map2).forEach(this::add);
+            return this;
+        }
+        Counts create(knucleotide knuc, int offset, int frag) {
+            Packed seq = knuc.seq;
             this.frag = frag;
-            int lastIndex = knuc.total - frag + 1;
+            int lastIndex = (int) (knuc.total - frag + 1);
             for (int index = offset; index < lastIndex; index += frag)
-                addTo(getKey(seq, index, frag), 1);
+                add(seq.key(index, frag), 1);
             return this;
         }
-        String writeFrequencies(float totalCount) {
-            List<java.util.Map.Entry<String, Integer>> freq = new ArrayList<>(size());
-            forEach((key, cnt) -> freq.add(new SimpleEntry<>(keyToString(key,frag),cnt)));
-            freq.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
-            String result = "";
-            for (java.util.Map.Entry<String, Integer> entry : freq) {
-                result += String.format(Locale.ENGLISH, "%s %.3f\n", entry.getKey(),
-                        entry.getValue() * 100.0f / totalCount);
+        void write(Output output, float totalCount, OutputStream out) throws IOException {
+            output.write(this, totalCount, out);
+        }
+        int count(byte [] codes) {
+            return codes.length==frag ? get(getKey(codes, 0, frag)):0;
+        }
+    }
+
+    /** a result backed by an open addressing hash map, suitable for any fragment length */
+    static class Hashed extends Counts {
+        final Counts map;
+
+        /** the fastutil map, counting its resizes */
+        static class Counts extends Long2IntOpenHashMap {
+            private static final long serialVersionUID = 1L;
+            int resizes;
+            Counts(int expected) { super(expected); }
+            protected void rehash(int newN) {
+                resizes++;
+                super.rehash(newN);
+            }
+            int capacity() { return n; }
+        }
+
+        Hashed() { this(1<<10); }
+        Hashed(long expected) { map = new Counts((int) Math.min(Math.max(expected, 16), 1<<30)); }
+        long capacity() { return map.capacity(); }
+        int resizes() { return map.resizes; }
+
+        public final void add(long key, int count) { map.addTo(key, count); }
+        public int get(long key) { return map.get(key); }
+        int size() { return map.size(); }
+        public void forEach(Visitor visitor) {
+            for (Long2IntMap.Entry entry : Long2IntMaps.fastIterable(map))
+                visitor.visit(entry.getLongKey(), entry.getIntValue());
+        }
+    }
+
+    /** a result backed by an OffHeapMap, for large tables that shouldn't burden the gc */
+    static class OffHeap extends Counts {
+        final OffHeapMap map;
+
+        OffHeap(long expected) { map = new OffHeapMap(expected); }
+        void free() { map.free(); }
+
+        public final void add(long key, int count) { map.addTo(key, count); }
+        public int get(long key) { return map.get(key); }
+        int size() { return (int) map.size(); }
+        long capacity() { return map.capacity(); }
+        int resizes() { return map.resizes; }
+        public void forEach(Visitor visitor) { map.forEach(visitor::visit); }
+    }
+
+    /**
+     * a result for fragments longer than 32 bases, with each key packed into as many longs as needed
+     * (the most significant word first) and counted in a WideMap
+     */
+    static class Wide extends Table {
+        final WideMap map;
+        /** the mask for the first word, which holds the bits that don't fill a whole long */
+        final long top;
+
+        Wide(int frag, long expected) {
+            this.frag = frag;
+            map = new WideMap((2*frag + 63) >>> 6, expected);
+            int bits = 2*frag - 64*(map.width-1);
+            top = bits==64 ? -1L : (1L << bits) - 1;
+        }
+
+        /** the wide key for an array of codes */
+        long [] getKey(byte [] codes) {
+            long [] key = new long[map.width];
+            for (byte code : codes)
+                shift(key, code);
+            return key;
+        }
+        void shift(long [] key, long code) {
+            int last = key.length-1;
+            for (int ii=0; ii < last; ii++)
+                key[ii] = (key[ii] << 2) | (key[ii+1] >>> 62);
+            key[last] = (key[last] << 2) | code;
+            key[0] &= top;
+        }
+
+        void free() { map.free(); }
+        int size() { return (int) map.size(); }
+        long capacity() { return map.capacity(); }
+        int resizes() { return map.resizes; }
+        int count(byte [] codes) {
+            return codes.length==frag ? map.get(getKey(codes)):0;
+        }
+        Table reduce(Result map2) {
+            ((Wide) map2).map.forEach(map::addTo);
+            return this;
+        }
+        public void roll(long [] words, long mask, int start, int first, int to) {
+            if (map.width==2) roll2(words, start, first, to, false);
+            else roll(words, start, first, to, false);
+        }
+        public void rollCanonical(long [] words, long mask, int start, int first, int to) {
+            if (map.width==2) roll2(words, start, first, to, true);
+            else roll(words, start, first, to, true);
+        }
+        /**
+         * roll with the key held in an array of words, and if canonical, count the lesser of it and its reverse
+         * complement, which is shifted down a base, ie towards the last word, with the complement entering at the top
+         */
+        void roll(long [] words, int start, int first, int to, boolean canonical) {
+            WideMap map = this.map;
+            int shift = Long.bitCount(top) - 2, last = map.width-1;
+            long [] key = new long[map.width], rc = new long[map.width];
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            for (; pos < to; ) {
+                long code = word >>> 62;
+                shift(key, code);
+                if (canonical) {
+                    for (int ii=last; ii > 0; ii--)
+                        rc[ii] = (rc[ii] >>> 2) | (rc[ii-1] << 62);
+                    rc[0] = (rc[0] >>> 2) | ((code ^ 3) << shift);
+                }
+                word <<= 2;
+                if (pos >= first)
+                    map.addTo(canonical && less(rc, key) ? rc:key, 1);
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+        }
+        /** whether the key is less than the other, comparing the words unsigned */
+        static boolean less(long [] key, long [] other) {
+            for (int ii=0; ii < key.length; ii++)
+                if (key[ii] != other[ii])
+                    return key[ii] + Long.MIN_VALUE < other[ii] + Long.MIN_VALUE;
+            return false;
+        }
+        /** roll with the key, and its reverse complement if canonical, held in 2 longs rather than an array */
+        void roll2(long [] words, int start, int first, int to, boolean canonical) {
+            WideMap map = this.map;
+            long top = this.top, hi = 0, lo = 0, rhi = 0, rlo = 0;
+            int shift = Long.bitCount(top) - 2;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            for (; pos < to; ) {
+                long code = word >>> 62;
+                hi = ((hi << 2) | (lo >>> 62)) & top;
+                lo = (lo << 2) | code;
+                if (canonical) {
+                    rlo = (rlo >>> 2) | (rhi << 62);
+                    rhi = (rhi >>> 2) | ((code ^ 3) << shift);
+                }
+                word <<= 2;
+                if (pos >= first) {
+                    if (! canonical || (hi==rhi ? lo + Long.MIN_VALUE <= rlo + Long.MIN_VALUE
+                            : hi + Long.MIN_VALUE < rhi + Long.MIN_VALUE))
+                        map.addTo(hi, lo, 1);
+                    else
+                        map.addTo(rhi, rlo, 1);
+                }
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
             }
-            return result+'\n';
         }
-        int get(int frag,long k) {
-            return this.frag==frag ? get(k):0;
+        /** the keys' words are copied to a single array, and sorted and written by Output with the counts */
+        void write(Output output, float totalCount, OutputStream out) throws IOException {
+            int size = size(), width = map.width;
+            long [] order = new long[size], words = new long[Math.multiplyExact(size, width)];
+            int [] num = new int[1];
+            map.forEach((key, count) -> {
+                order[num[0]] = -(long) count;
+                System.arraycopy(key, 0, words, num[0]++ * width, width);
+            });
+            output.header(frag, size, out);
+            output.entries(order, words, width, size, frag, totalCount, out);
+            output.end(out);
+        }
+    }
+
+    /**
+     * an approximate result in bounded memory, for long fragments with more distinct keys than fit in a table:
+     * a CountMinSketch for the counts and a SpaceSaving summary of the most frequent keys.
+     * the counts never undercount, and the frequencies are written with the bound on the overcount
+     */
+    static class Sketch extends Counts {
+        final CountMinSketch sketch;
+        final SpaceSaving top;
+        /** the number of keys to write the frequencies of */
+        final int report;
+
+        Sketch(Options opts) {
+            sketch = new CountMinSketch(opts.epsilon, opts.delta, opts.sketchBytes/2);
+            top = new SpaceSaving(capacity(opts));
+            report = opts.top;
+        }
+
+        /**
+         * the summary finds every key with a count above total/capacity, so it's sized to match the sketch's epsilon,
+         * within half the memory limit
+         */
+        static int capacity(Options opts) {
+            long capacity = (long) Math.ceil(1 / opts.epsilon);
+            if (opts.sketchBytes > 0)
+                capacity = Math.min(capacity, opts.sketchBytes/2 / SpaceSaving.entryBytes);
+            return (int) Math.max(opts.top, Math.min(capacity, 1<<26));
+        }
+
+        /** the most bytes used by a sketch for the options */
+        static long bytes(Options opts) {
+            return CountMinSketch.bytes(opts.epsilon, opts.delta, opts.sketchBytes/2)
+                    + (long) capacity(opts) * SpaceSaving.entryBytes;
+        }
+
+        public final void add(long key, int count) {
+            sketch.add(key, count);
+            top.add(key, count);
+        }
+        public int get(long key) { return sketch.estimate(key); }
+        int size() { return top.size(); }
+        long capacity() { return top.capacity; }
+        /** the most frequent keys, with the lesser of the two estimates of their counts */
+        public void forEach(Visitor visitor) {
+            top.forEach((key, count, error) -> visitor.visit(key, (int) Math.min(count, sketch.estimate(key))));
+        }
+        Table reduce(Result map2) {
+            if (! (map2 instanceof Sketch))
+                return super.reduce(map2);
+            sketch.merge(((Sketch) map2).sketch);
+            top.merge(((Sketch) map2).top);
+            return this;
+        }
+        long error() { return sketch.error(); }
+        /**
+         * the results with the sketches of each length merged into one, so a count is estimated from the summed
+         * counters, with the bound of a single sketch rather than the sum of the estimates and bounds of each
+         */
+        static List<Result> merged(List<Result> results, Options opts) {
+            List<Result> merged = new ArrayList<>();
+            Map<Integer, Sketch> sketches = new TreeMap<>();
+            for (Result result : results)
+                if (result instanceof Sketch)
+                    sketches.computeIfAbsent(result.frag, frag -> {
+                        Sketch sketch = new Sketch(opts);
+                        sketch.frag = frag;
+                        return sketch;
+                    }).reduce(result);
+                else merged.add(result);
+            merged.addAll(sketches.values());
+            return merged;
+        }
+        /**
+         * the most frequent keys, with the bound on the overcount of each,
+         * ie the lesser of the space-saving error and the sketch's error
+         */
+        void write(Output output, float totalCount, OutputStream out) throws IOException {
+            int size = size(), report = Math.min(this.report, size);
+            long [] order = new long[size], keys = new long[size];
+            int [] num = new int[1];
+            forEach((key, count) -> {
+                order[num[0]] = -(long) count;
+                keys[num[0]++] = key + Long.MIN_VALUE;
+            });
+            long error = sketch.error();
+            output.header(frag, report, out);
+            output.entries(order, keys, size, report, key -> Math.min(top.error(key), error), frag, totalCount, out);
+            output.end(out);
+        }
+    }
+
+    /** a read only result backed by a KmerIndex, ie counts that were saved by an earlier run */
+    static class Indexed extends Result implements Keyed {
+        final KmerIndex index;
+
+        Indexed(KmerIndex index) {
+            this.index = index;
+            frag = index.frag;
+        }
+
+        /** open the index for the fragment length in the directory, which must match the canonical option */
+        static Indexed open(String dir, int frag, boolean canonical) throws IOException {
+            Path path = path(dir, frag);
+            if (! Files.exists(path))
+                throw new IllegalArgumentException("no index for length " + frag + ": " + path);
+            KmerIndex index = new KmerIndex(path);
+            if (((index.flags & KmerIndex.canonical) != 0) != canonical)
+                throw new IllegalArgumentException("the index is " + (canonical ? "not ":"") + "canonical: " + path);
+            return new Indexed(index);
+        }
+        static Path path(String dir, int frag) {
+            return Paths.get(dir, frag + ".kmi");
+        }
+
+        /** save the result as an index, for a sequence of the given length */
+        static void save(Result result, long length, boolean canonical, Path path) throws IOException {
+            if (result.frag > 32 || result.error() > 0)
+                throw new IllegalArgumentException("only exact counts of up to 32 bases can be saved: " + result.frag);
+            if (result instanceof Sorted) {
+                Sorted sorted = (Sorted) result;
+                int size = sorted.size();
+                KmerIndex.write(path, result.frag, length, canonical ? KmerIndex.canonical:0, sorted.keys, sorted.counts, size);
+                return;
+            }
+            Keyed exact = (Keyed) result;
+            long [] keys = new long[result.size()];
+            int [] num = new int[1];
+            // flip the sign bit so the signed sort gives unsigned order, for 32 base keys
+            exact.forEach((key, count) -> keys[num[0]++] = key ^ Long.MIN_VALUE);
+            Arrays.parallelSort(keys, 0, num[0]);
+            int [] counts = new int[num[0]];
+            for (int ii=0; ii < num[0]; ii++)
+                counts[ii] = exact.get(keys[ii] ^= Long.MIN_VALUE);
+            KmerIndex.write(path, result.frag, length, canonical ? KmerIndex.canonical:0, keys, counts, num[0]);
+        }
+
+        public int get(long key) { return index.get(key); }
+        int size() { return (int) index.size; }
+        public void forEach(Visitor visitor) { index.forEach(visitor::visit); }
+        void free() { index.close(); }
+        int count(byte [] codes) {
+            return codes.length==frag ? get(getKey(codes, 0, frag)):0;
+        }
+        void write(Output output, float totalCount, OutputStream out) throws IOException {
+            output.write(this, totalCount, out);
+        }
+
+        /**
+         * write the frequencies of the n most frequent keys, from the index's stored top when it holds that many.
+         * keys with the same count as the last of them may be left out, whichever of them are first in the index
+         */
+        void writeTop(Output output, int n, float totalCount, OutputStream out) throws IOException {
+            int size = (int) Math.min(n, index.size);
+            long [] order = new long[size], keys = new long[size];
+            int [] num = new int[1];
+            index.top(size, (key, count) -> {
+                order[num[0]] = -(long) count;
+                keys[num[0]++] = key + Long.MIN_VALUE;
+            });
+            output.header(frag, size, out);
+            output.entries(order, keys, size, frag, totalCount, out);
+            output.end(out);
+        }
+
+        /**
+         * write the count and key of each key of the scan in unsigned order, a line each as for writeCount.
+         * a scan is a range "first-last" of keys of the same length, or the keys of a length that start with a prefix,
+         * "prefix:length". the keys of a canonical index are those stored, ie the lesser of each pair
+         */
+        void scan(String scan, OutputStream out) throws IOException {
+            StringBuilder lines = new StringBuilder();
+            KmerIndex.Visitor visitor = (key, count) ->
+                    lines.append(count).append('\t').append(keyToString(key, frag)).append('\n');
+            int colon = scan.indexOf(':'), dash = scan.indexOf('-');
+            if (colon >= 0)
+                index.prefix(key(scan.substring(0, colon)), colon, visitor);
+            else
+                index.range(key(scan.substring(0, dash)), key(scan.substring(dash+1)), visitor);
+            out.write(lines.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+        /** the length of the keys of a scan, see scan */
+        static int length(String scan) {
+            int colon = scan.indexOf(':'), dash = scan.indexOf('-');
+            int length = colon >= 0 ? Integer.parseInt(scan.substring(colon+1)) : dash;
+            String bases = colon >= 0 ? scan.substring(0, colon) : scan.replace("-", "");
+            if ((colon < 0 ? scan.length() != 2*dash+1 : colon > length) || length < 1 || length > 32
+                    || ! bases.matches("[ACGTacgt]*"))
+                throw new IllegalArgumentException("a scan is first-last or prefix:length, of up to 32 bases: " + scan);
+            return length;
+        }
+        static long key(String bases) {
+            return getKey(toCodes(bases.getBytes(StandardCharsets.ISO_8859_1), bases.length()), 0, bases.length());
+        }
+        /** the index of the length, of the results of a job run with -index */
+        static Indexed of(List<Result> results, int frag) {
+            for (Result result : results)
+                if (result.frag==frag) return (Indexed) result;
+            throw new IllegalArgumentException("length wasn't indexed: " + frag);
+        }
+    }
+
+    /**
+     * a result for short fragments with the counts stored in an array indexed directly by the key, ie a unity hash.
+     * there's no hashing or probing, and results are merged by adding the arrays
+     */
+    static class Dense extends Counts {
+        /**
+         * the longest fragment to store densely, at most 12 (4^12 counts or 64M per table),
+         * and limited so that a table per thread fits in a quarter of the heap
+         */
+        static int maxFrag = limit(12);
+        final int [] counts;
+
+        Dense(int frag) {
+            this.frag = frag;
+            counts = new int[1 << 2*frag];
+        }
+
+        static int limit(int frag) {
+            long budget = Runtime.getRuntime().maxMemory() / 4;
+            while (frag > 1 && (4L << 2*frag) * nproc > budget)
+                frag--;
+            return frag;
+        }
+
+        public final void add(long key, int count) { counts[(int) key] += count; }
+        public int get(long key) { return counts[(int) key]; }
+        int size() {
+            int num = 0;
+            for (int count : counts)
+                if (count != 0) num++;
+            return num;
+        }
+        long capacity() { return counts.length; }
+        public void forEach(Visitor visitor) {
+            for (int ii=0; ii < counts.length; ii++)
+                if (counts[ii] != 0) visitor.visit(ii, counts[ii]);
+        }
+        Table reduce(Result map2) {
+            if (! (map2 instanceof Dense))
+                return super.reduce(map2);
+            int [] other = ((Dense) map2).counts;
+            for (int ii=0; ii < counts.length; ii++)
+                counts[ii] += other[ii];
+            return this;
+        }
+        public void roll(long [] words, long mask, int start, int first, int to) {
+            int [] counts = this.counts;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0;
+            for (; pos < to; ) {
+                key = (key << 2) | (word >>> 62);
+                word <<= 2;
+                if (pos >= first)
+                    counts[(int) (key & mask)]++;
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+        }
+        public void rollCanonical(long [] words, long mask, int start, int first, int to) {
+            int [] counts = this.counts;
+            int shift = 2*frag - 2;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0, rc = 0;
+            for (; pos < to; ) {
+                long code = word >>> 62;
+                key = (key << 2) | code;
+                rc = (rc >>> 2) | ((code ^ 3) << shift);
+                word <<= 2;
+                if (pos >= first)
+                    counts[(int) canonical(key & mask, rc)]++;
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+        }
+    }
+
+    /**
+     * a result for long fragments that are mostly distinct, counted by sorting rather than hashing.
+     * the rolled keys are appended to an array, a sequential write with no probing or resizing, and once it's full,
+     * or the result is read, the keys are radix sorted and each run of equal keys becomes a key and its count,
+     * which are merged into the sorted keys and counts. a lookup is a binary search, results are merged linearly,
+     * and the keys are already in the unsigned order of a KmerIndex.
+     * the per-thread results sort in parallel, and the merge of the per-thread results is a pass over each
+     */
+    static class Sorted extends Counts {
+        /** the most keys that are buffered before they're sorted, by default 32M plus as much again to sort them */
+        final int maxPending;
+        /** the most bits per digit of the radix sort, so the offsets of a digit fit in the L1 cache */
+        static final int digitBits = 11;
+
+        /** the keys in unsigned order and their counts, the first size of each */
+        long [] keys = new long[0];
+        int [] counts = new int[0];
+        int size;
+        /** the keys rolled since the last sort, each counted once, and the scratch array of the radix sort */
+        long [] pending = new long[1<<10], scratch = new long[0];
+        int num;
+        /** the keys added with other counts since the last sort, eg by reduce */
+        Long2IntOpenHashMap weighted;
+        /** whether any keys haven't been sorted, checked before each read, since lookups may be concurrent */
+        volatile boolean dirty;
+
+        Sorted() { this(1<<22); }
+
+        Sorted(int maxPending) {
+            this.maxPending = maxPending;
+        }
+
+        /** the counts of a saved index, which are already in unsigned order */
+        static Sorted of(KmerIndex index) {
+            Sorted sorted = new Sorted();
+            sorted.frag = index.frag;
+            sorted.size = (int) index.size;
+            sorted.keys = new long[sorted.size];
+            sorted.counts = new int[sorted.size];
+            for (int ii=0; ii < sorted.size; ii++) {
+                sorted.keys[ii] = index.key(ii);
+                sorted.counts[ii] = index.count(ii);
+            }
+            return sorted;
+        }
+
+        public void add(long key, int count) {
+            if (count==1) {
+                reserve(1);
+                pending[num++] = key;
+            }
+            else {
+                if (weighted==null) weighted = new Long2IntOpenHashMap();
+                weighted.addTo(key, count);
+            }
+            if (! dirty) dirty = true;
+        }
+        public int get(long key) {
+            if (dirty) seal();
+            int index = find(key);
+            return index < 0 ? 0 : counts[index];
+        }
+        /** the index of the key, or -1 if it's not counted */
+        int find(long key) {
+            long target = key + Long.MIN_VALUE;
+            for (int lo = 0, hi = size - 1; lo <= hi; ) {
+                int mid = (lo + hi) >>> 1;
+                long other = keys[mid] + Long.MIN_VALUE;
+                if (other < target) lo = mid + 1;
+                else if (other > target) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+        int size() {
+            if (dirty) seal();
+            return size;
+        }
+        long capacity() { return keys.length; }
+        public void forEach(Visitor visitor) {
+            if (dirty) seal();
+            for (int ii=0; ii < size; ii++)
+                visitor.visit(keys[ii], counts[ii]);
+        }
+        Table reduce(Result map2) {
+            if (! (map2 instanceof Sorted))
+                return super.reduce(map2);
+            Sorted other = (Sorted) map2;
+            if (dirty) seal();
+            if (other.dirty) other.seal();
+            merge(other.keys, other.counts, other.size);
+            return this;
+        }
+        void free() {
+            keys = pending = scratch = new long[0];
+            counts = new int[0];
+            size = num = 0;
+            weighted = null;
+        }
+
+        /** make room for n more pending keys, growing the array up to the limit and then sorting it */
+        void reserve(int n) {
+            if (num + n <= pending.length) return;
+            if (num + n > maxPending) sort();
+            if (num + n > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(num + n, Math.min(maxPending, 2*pending.length)));
+        }
+
+        /** sort the pending and weighted keys into the sorted keys */
+        synchronized void seal() {
+            if (! dirty) return;
+            sort();
+            if (weighted != null) {
+                long [] wk = new long[weighted.size()];
+                int [] wc = new int[wk.length];
+                int index = 0;
+                // flip the sign bit so the signed sort gives unsigned order
+                for (long key : weighted.keySet())
+                    wk[index++] = key ^ Long.MIN_VALUE;
+                Arrays.sort(wk);
+                for (int ii=0; ii < wk.length; ii++)
+                    wc[ii] = weighted.get(wk[ii] ^= Long.MIN_VALUE);
+                weighted = null;
+                merge(wk, wc, wk.length);
+            }
+            dirty = false;
+        }
+
+        /** radix sort the pending keys, and merge each run of equal keys as a key and its count */
+        void sort() {
+            if (num==0) return;
+            Metrics.Span span = Metrics.span("sort").frag(frag);
+            if (scratch.length < num) scratch = new long[pending.length];
+            long [] sorted = radixSort(pending, scratch, num, 2*frag);
+            scratch = sorted==pending ? scratch : pending;
+            pending = sorted;
+            int [] runs = new int[num];
+            int unique = 0;
+            for (int ii=0; ii < num; ii++) {
+                if (unique > 0 && sorted[ii]==sorted[unique-1]) runs[unique-1]++;
+                else {
+                    sorted[unique] = sorted[ii];
+                    runs[unique++] = 1;
+                }
+            }
+            span.end(0, num);
+            num = 0;
+            merge(sorted, runs, unique);
+        }
+
+        /**
+         * sort the first num keys of up to the given number of bits, least significant digit first,
+         * between the keys and the scratch array, returning whichever holds the sorted keys.
+         * the offsets of every digit are counted in a single pass, and a digit that all the keys share is skipped
+         */
+        static long[] radixSort(long [] keys, long [] scratch, int num, int bits) {
+            int passes = Math.max(1, (bits + digitBits - 1) / digitBits), width = (bits + passes - 1) / passes;
+            int mask = (1 << width) - 1;
+            int [][] offsets = new int[passes][1 << width];
+            for (int ii=0; ii < num; ii++) {
+                long key = keys[ii];
+                for (int pass=0; pass < passes; pass++)
+                    offsets[pass][(int) (key >>> pass*width) & mask]++;
+            }
+            long [] from = keys, to = scratch;
+            for (int pass=0; pass < passes; pass++) {
+                int [] offset = offsets[pass];
+                int shift = pass*width;
+                if (offset[(int) (from[0] >>> shift) & mask]==num) continue;
+                for (int digit=0, sum=0; digit <= mask; digit++) {
+                    int count = offset[digit];
+                    offset[digit] = sum;
+                    sum += count;
+                }
+                for (int ii=0; ii < num; ii++) {
+                    long key = from[ii];
+                    to[offset[(int) (key >>> shift) & mask]++] = key;
+                }
+                long [] swap = from;
+                from = to;
+                to = swap;
+            }
+            return from;
+        }
+
+        /** merge the first n of the keys, which must be in unsigned order, and their counts into this result's */
+        void merge(long [] other, int [] otherCounts, int n) {
+            if (n==0) return;
+            long [] mk = new long[size + n];
+            int [] mc = new int[size + n];
+            int ii = 0, jj = 0, index = 0;
+            while (ii < size && jj < n) {
+                long key = keys[ii] + Long.MIN_VALUE, key2 = other[jj] + Long.MIN_VALUE;
+                if (key < key2) {
+                    mk[index] = keys[ii];
+                    mc[index++] = counts[ii++];
+                }
+                else if (key > key2) {
+                    mk[index] = other[jj];
+                    mc[index++] = otherCounts[jj++];
+                }
+                else {
+                    mk[index] = keys[ii];
+                    mc[index++] = counts[ii++] + otherCounts[jj++];
+                }
+            }
+            System.arraycopy(keys, ii, mk, index, size - ii);
+            System.arraycopy(counts, ii, mc, index, size - ii);
+            index += size - ii;
+            System.arraycopy(other, jj, mk, index, n - jj);
+            System.arraycopy(otherCounts, jj, mc, index, n - jj);
+            keys = mk;
+            counts = mc;
+            size = index + n - jj;
+        }
+
+        public void roll(long [] words, long mask, int start, int first, int to) {
+            if (to <= first) return;
+            reserve(to - first);
+            long [] pending = this.pending;
+            int num = this.num;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0;
+            for (; pos < to; ) {
+                key = (key << 2) | (word >>> 62);
+                word <<= 2;
+                if (pos >= first)
+                    pending[num++] = key & mask;
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+            this.num = num;
+            dirty = true;
+        }
+        public void rollCanonical(long [] words, long mask, int start, int first, int to) {
+            if (to <= first) return;
+            reserve(to - first);
+            long [] pending = this.pending;
+            int num = this.num;
+            int shift = 2*frag - 2;
+            int pos = start;
+            long word = words[pos >>> 5] << 2*(pos & 31);
+            long key = 0, rc = 0;
+            for (; pos < to; ) {
+                long code = word >>> 62;
+                key = (key << 2) | code;
+                rc = (rc >>> 2) | ((code ^ 3) << shift);
+                word <<= 2;
+                if (pos >= first)
+                    pending[num++] = canonical(key & mask, rc);
+                if ((++pos & 31)==0)
+                    word = words[pos >>> 5];
+            }
+            this.num = num;
+            dirty = true;
+        }
+    }
+
+    /**
+     * a result that counts in a fixed memory budget, however long the sequence and however many distinct keys,
+     * for fragments of up to 32 bases.
+     * the keys are buffered and sorted in a Sorted, and once it holds more distinct keys than its share of the budget
+     * they're written out with their counts as a sorted run of a Spill file, so any range of key prefixes is a slice
+     * of each run.
+     * reducing results just collects their runs, and they're counted once, a range at a time: the key space is halved
+     * until each range holds a bounded number of entries, found with a binary search of each run, and the ranges are
+     * merged in parallel, each a k-way merge of its slices into the runs of a new file. those runs are disjoint and in
+     * order, so a lookup is a binary search of the first keys and then of a single run.
+     * a result that never outgrows its buffer stays in memory
+     */
+    static class External extends Counts {
+        final Path dir;
+        /** the most distinct keys kept in memory */
+        final int limit;
+        /** the bytes of memory for counting the runs */
+        final long budget;
+        final Sorted memory;
+        /** the file that this result spills to */
+        Spill spill;
+        /** the files holding the runs, which may be shared with other results, and are closed when it's freed */
+        List<Spill> files = new ArrayList<>();
+        List<Spill.Run> runs = new ArrayList<>();
+        /** the first key of each run and the number of keys, once counted */
+        long [] firsts = new long[0];
+        long size;
+        /** whether the runs are counted, ie disjoint and in order with nothing in memory, or there are none */
+        volatile boolean counted = true;
+
+        External(int frag, Options opts) {
+            this.frag = frag;
+            dir = Paths.get(opts.spill);
+            // the buffer, its scratch copy and the merge of the distinct keys take up to 56 bytes per key
+            limit = (int) Math.max(1<<16, Math.min(1<<26, share(opts) / 64));
+            budget = opts.budget;
+            memory = new Sorted(limit);
+            memory.frag = frag;
+        }
+
+        /** the bytes of the budget for each table, with a table per thread and length */
+        static long share(Options opts) {
+            return opts.budget / ((long) nproc * opts.frags().length);
+        }
+
+        public void add(long key, int count) {
+            if (memory.num >= limit) compact();
+            memory.add(key, count);
+        }
+        public int get(long key) {
+            if (! counted) countRuns();
+            if (runs.isEmpty()) return memory.get(key);
+            // the last run that starts at or before the key
+            int lo = 0, hi = firsts.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (KmerIndex.less(key, firsts[mid])) hi = mid;
+                else lo = mid + 1;
+            }
+            return lo==0 ? 0 : runs.get(lo-1).get(key);
+        }
+        int size() {
+            if (! counted) countRuns();
+            return runs.isEmpty() ? memory.size() : (int) size;
+        }
+        public void forEach(Visitor visitor) {
+            if (! counted) countRuns();
+            if (runs.isEmpty()) memory.forEach(visitor);
+            for (Spill.Run run : runs)
+                for (int ii=0; ii < run.size; ii++)
+                    visitor.visit(run.key(ii), run.count(ii));
+        }
+        /** add the other's keys, sharing its runs, and taking them as counted if this is empty */
+        Table reduce(Result map2) {
+            if (! (map2 instanceof External))
+                return super.reduce(map2);
+            External other = (External) map2;
+            boolean adopt = runs.isEmpty() && memory.size()==0 && other.counted && other.memory.size()==0;
+            memory.reduce(other.memory);
+            for (Spill file : other.files)
+                files.add(file.retain());
+            runs.addAll(other.runs);
+            if (adopt) {
+                firsts = other.firsts;
+                size = other.size;
+            }
+            counted = runs.isEmpty() || adopt;
+            if (memory.size > limit) spill();
+            return this;
+        }
+        void seal() {
+            if (runs.isEmpty()) memory.seal();
+            else spill();
+        }
+        /**
+         * write the frequencies a band of counts at a time, most frequent first, so only the entries of a band are
+         * held and sorted in memory. the bands are chosen from a histogram of the counts, and each is a pass over the
+         * runs. a single count with more entries than fit is written a batch at a time, since the runs are in key order
+         */
+        void write(Output output, float totalCount, OutputStream out) throws IOException {
+            if (! counted) countRuns();
+            if (runs.isEmpty()) {
+                super.write(output, totalCount, out);
+                return;
+            }
+            Int2LongOpenHashMap histogram = new Int2LongOpenHashMap();
+            for (Spill.Run run : runs)
+                for (int ii=0; ii < run.size; ii++)
+                    histogram.addTo(run.count(ii), 1);
+            int [] distinct = histogram.keySet().toIntArray();
+            Arrays.sort(distinct);
+            int most = (int) Math.max(1<<16, Math.min(Integer.MAX_VALUE - 8, budget / 16));
+            long [] order = new long[(int) Math.min(most, size)], keys = new long[order.length];
+            output.header(frag, size, out);
+            for (int hi = distinct.length - 1; hi >= 0; ) {
+                int lo = hi;
+                for (long entries = histogram.get(distinct[lo]); lo > 0 && entries + histogram.get(distinct[lo-1]) <= most; )
+                    entries += histogram.get(distinct[--lo]);
+                int least = distinct[lo], greatest = distinct[hi];
+                int num = 0;
+                for (Spill.Run run : runs)
+                    for (int ii=0; ii < run.size; ii++) {
+                        int count = run.count(ii);
+                        if (count < least || count > greatest) continue;
+                        if (num==order.length) {
+                            output.entries(order, keys, num, frag, totalCount, out);
+                            num = 0;
+                        }
+                        order[num] = -(long) count;
+                        keys[num++] = run.key(ii) + Long.MIN_VALUE;
+                    }
+                output.entries(order, keys, num, frag, totalCount, out);
+                hi = lo - 1;
+            }
+            output.end(out);
+        }
+        void free() {
+            for (Spill file : files)
+                file.close();
+            files = new ArrayList<>();
+            runs = new ArrayList<>();
+            spill = null;
+            memory.free();
+        }
+
+        /** sort the buffered keys, and spill them if there are more distinct keys than fit */
+        void compact() {
+            memory.seal();
+            if (memory.size > limit) spill();
+        }
+
+        /** write the keys in memory as a run, and empty the memory */
+        void spill() {
+            memory.seal();
+            if (memory.size==0) return;
+            Metrics.Span span = Metrics.span("spill").frag(frag);
+            try {
+                if (spill==null || spill.finished()) files.add(spill = new Spill(dir));
+                runs.add(spill.write(memory.keys, memory.counts, memory.size));
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            span.end(12L * memory.size, memory.size);
+            memory.keys = new long[0];
+            memory.counts = new int[0];
+            memory.size = 0;
+            counted = false;
+        }
+
+        /**
+         * combine the external results of each length into a single counted result, counting the runs in parallel,
+         * and free the results they were combined from
+         */
+        static List<Result> combine(List<Result> results, Options opts, ExecutorService pool) throws IOException {
+            Map<Integer, External> combined = new TreeMap<>();
+            List<Result> others = new ArrayList<>();
+            for (Result result : results)
+                if (result instanceof External)
+                    combined.computeIfAbsent(result.frag, frag -> new External(frag, opts)).reduce(result);
+                else others.add(result);
+            for (External external : combined.values()) {
+                external.countRuns(pool);
+                others.add(external);
+            }
+            for (Result result : results)
+                if (result instanceof External) result.free();
+            return others;
+        }
+
+        /** count the runs on the calling thread, eg for a lookup */
+        void countRuns() {
+            try {
+                countRuns(null);
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        /** count the runs, merging the ranges in parallel on the pool if there is one */
+        synchronized void countRuns(ExecutorService pool) throws IOException {
+            if (counted) return;
+            spill();
+            Metrics.Span span = Metrics.span("count runs").frag(frag);
+            List<Spill.Run> all = runs;
+            long entries = 0;
+            for (Spill.Run run : all) {
+                run.file.finish();
+                entries += run.size;
+            }
+            // the ranges are sorted in memory, with a range per thread at a time
+            List<long[]> ranges = new ArrayList<>();
+            split(all, 0, frag >= 32 ? -1L : (1L << 2*frag) - 1, Math.max(1<<10, Math.min(1<<18, budget / (24L * nproc))), ranges);
+            // contiguous groups of the ranges, a file each, so the runs of the files are in order
+            int groups = Math.min(ranges.size(), 4*nproc);
+            List<List<long[]>> grouped = new ArrayList<>();
+            for (int gg=0; gg < groups; gg++)
+                grouped.add(ranges.subList(gg * ranges.size() / groups, (gg+1) * ranges.size() / groups));
+            List<Spill> merged = new ArrayList<>();
+            if (pool==null)
+                for (List<long[]> group : grouped)
+                    merged.add(count(all, group));
+            else {
+                List<Callable<Spill>> tasks = new ArrayList<>();
+                for (List<long[]> group : grouped)
+                    tasks.add(() -> count(all, group));
+                try {
+                    for (Future<Spill> future : pool.invokeAll(tasks))
+                        merged.add(future.get());
+                }
+                catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) ex.getCause();
+                    throw new IOException(ex.getCause());
+                }
+            }
+            for (Spill file : files)
+                file.close();
+            spill = null;
+            files = merged;
+            runs = new ArrayList<>();
+            size = 0;
+            for (Spill file : merged) {
+                runs.addAll(file.runs);
+                for (Spill.Run run : file.runs)
+                    size += run.size;
+            }
+            firsts = new long[runs.size()];
+            for (int ii=0; ii < firsts.length; ii++)
+                firsts[ii] = runs.get(ii).key(0);
+            counted = true;
+            span.end(12L * entries, size);
+        }
+
+        /**
+         * split the keys from first to last, inclusive and unsigned, in halves until each range has at most target entries,
+         * adding the first and last keys and the number of entries of each range
+         */
+        static void split(List<Spill.Run> runs, long first, long last, long target, List<long[]> ranges) {
+            long entries = 0;
+            for (Spill.Run run : runs)
+                entries += run.upperBound(last) - run.lowerBound(first);
+            if (entries==0) return;
+            if (entries <= target || first==last) {
+                if (entries > Integer.MAX_VALUE - 8)
+                    throw new IllegalArgumentException("too many runs of a single key to count: " + entries);
+                ranges.add(new long[] { first, last, entries });
+                return;
+            }
+            long mid = first + ((last - first) >>> 1);
+            split(runs, first, mid, target, ranges);
+            split(runs, mid + 1, last, target, ranges);
+        }
+
+        /**
+         * count the ranges into a run each, in a new file: the slices of the runs in the range are read into arrays,
+         * sorted by the bits that vary within the range, which are the low bits since every range is aligned,
+         * and each run of equal keys is written once with the sum of its counts
+         */
+        Spill count(List<Spill.Run> runs, List<long[]> ranges) throws IOException {
+            Metrics.Span span = Metrics.span("count range").frag(frag);
+            int most = 0;
+            for (long [] range : ranges)
+                most = Math.max(most, (int) range[2]);
+            long [] keys = new long[most], keyScratch = new long[most];
+            int [] counts = new int[most], countScratch = new int[most];
+            Spill out = new Spill(dir);
+            long entries = 0;
+            for (long [] range : ranges) {
+                int num = 0;
+                for (Spill.Run run : runs) {
+                    int from = run.lowerBound(range[0]), to = run.upperBound(range[1]);
+                    run.read(from, to, keys, counts, num);
+                    num += to - from;
+                }
+                sort(keys, counts, keyScratch, countScratch, num, 64 - Long.numberOfLeadingZeros(range[0] ^ range[1]));
+                int unique = 0;
+                for (int ii=0; ii < num; ii++) {
+                    if (unique > 0 && keys[ii]==keys[unique-1]) counts[unique-1] += counts[ii];
+                    else {
+                        keys[unique] = keys[ii];
+                        counts[unique++] = counts[ii];
+                    }
+                }
+                out.write(keys, counts, unique);
+                entries += num;
+            }
+            out.finish();
+            span.end(12L * entries, entries);
+            return out;
+        }
+
+        /**
+         * sort the first num keys by their low bits, carrying their counts, least significant digit first as for
+         * Sorted.radixSort, leaving the sorted keys and counts in the first arrays
+         */
+        static void sort(long [] keys, int [] counts, long [] keyScratch, int [] countScratch, int num, int bits) {
+            if (num < 2 || bits==0) return;
+            int passes = (bits + Sorted.digitBits - 1) / Sorted.digitBits, width = (bits + passes - 1) / passes;
+            int mask = (1 << width) - 1;
+            int [][] offsets = new int[passes][1 << width];
+            for (int ii=0; ii < num; ii++) {
+                long key = keys[ii];
+                for (int pass=0; pass < passes; pass++)
+                    offsets[pass][(int) (key >>> pass*width) & mask]++;
+            }
+            long [] from = keys, to = keyScratch;
+            int [] fromCounts = counts, toCounts = countScratch;
+            for (int pass=0; pass < passes; pass++) {
+                int [] offset = offsets[pass];
+                int shift = pass*width;
+                if (offset[(int) (from[0] >>> shift) & mask]==num) continue;
+                for (int digit=0, sum=0; digit <= mask; digit++) {
+                    int count = offset[digit];
+                    offset[digit] = sum;
+                    sum += count;
+                }
+                for (int ii=0; ii < num; ii++) {
+                    long key = from[ii];
+                    int index = offset[(int) (key >>> shift) & mask]++;
+                    to[index] = key;
+                    toCounts[index] = fromCounts[ii];
+                }
+                long [] swap = from;
+                from = to;
+                to = swap;
+                int [] swapCounts = fromCounts;
+                fromCounts = toCounts;
+                toCounts = swapCounts;
+            }
+            if (from != keys) {
+                System.arraycopy(from, 0, keys, 0, num);
+                System.arraycopy(fromCounts, 0, counts, 0, num);
+            }
+        }
+
+        public void roll(long [] words, long mask, int start, int first, int to) {
+            if (memory.num + (to - first) > limit) compact();
+            memory.roll(words, mask, start, first, to);
+        }
+        public void rollCanonical(long [] words, long mask, int start, int first, int to) {
+            if (memory.num + (to - first) > limit) compact();
+            memory.rollCanonical(words, mask, start, first, to);
         }
     }
 
     ArrayList<Callable<Result>> createFragmentTasks(int[] frags) {
         ArrayList<Callable<Result>> tasks = new ArrayList<>();
+        for (int frag : frags)
+            if (frag > 32)
+                throw new IllegalArgumentException("the offset engine is limited to 32 bases: " + frag);
         for (int frag : frags)
             for (int index = 0; index < frag; index++) {
                 int offset = index;
-                tasks.add(() -> new Result().create(this, offset, frag));
+                tasks.add(() -> {
+                    Metrics.Span span = Metrics.task("create").frag(frag);
+                    Result result = new Hashed().create(this, offset, frag);
+                    span.end(0, total / frag);
+                    return result;
+                });
             }
         return tasks;
     }
 
+    /**
+     * count every fragment length in a single pass over a range of the sequence,
+     * keeping a rolling key that is shifted 2 bits per base and masked to the length,
+     * ie O(n) per length instead of O(n*frag).
+     * the range is processed in blocks that fit in the L1 cache, and each block is rolled once per length,
+     * so the sequence is only read from memory once but each inner loop touches a single table
+     */
+    static class Rolling {
+        final int [] frags;
+        final long [] masks;
+        /** the number of bases per range, sized so that the largest tables stay small */
+        int rangeSize = 1<<22;
+        /** the number of bases per block, 4k of packed words */
+        int blockSize = 1<<14;
+
+        final Options opts;
+        final boolean canonical;
+
+        Rolling(int [] frags, Options opts) {
+            this.frags = frags;
+            this.opts = opts;
+            canonical = opts.canonical;
+            masks = new long[frags.length];
+            for (int jj=0; jj < frags.length; jj++)
+                masks[jj] = frags[jj] >= 32 ? -1L : (1L << 2*frags[jj]) - 1;
+        }
+
+        /** empty results for each of the lengths */
+        Table[] tables() {
+            return tables(Long.MAX_VALUE);
+        }
+
+        /** empty results for each of the lengths, suited to counting the given number of windows */
+        Table[] tables(long windows) {
+            Table [] results = new Table[frags.length];
+            for (int jj=0; jj < frags.length; jj++)
+                results[jj] = Result.of(frags[jj], opts, windows);
+            return results;
+        }
+
+        /**
+         * count the fragments that end in the range [from,to), adding to the sink for each length.
+         * the frag-1 bases before from are read so that adjacent ranges don't overlap
+         */
+        <T extends Sink> T[] count(Packed seq, int from, int to, T [] results) {
+            for (int block = from; block < to; block += blockSize) {
+                int end = Math.min(to, block + blockSize);
+                for (int jj=0; jj < frags.length; jj++) {
+                    int first = Math.max(block, frags[jj]-1);
+                    if (canonical) results[jj].rollCanonical(seq.words, masks[jj], first - frags[jj] + 1, first, end);
+                    else results[jj].roll(seq.words, masks[jj], first - frags[jj] + 1, first, end);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * split the sequence into ranges, and create a task per thread that claims ranges until they're exhausted,
+     * counting all the fragment lengths into a single set of per-thread results
+     */
+    ArrayList<Callable<Result[]>> createRangeTasks(int[] frags, Options opts) {
+        Rolling rolling = new Rolling(frags, opts);
+        ArrayList<Callable<Result[]>> tasks = new ArrayList<>();
+        int size = rolling.rangeSize;
+        int num = (int) ((total - overlap + size - 1) / size);
+        AtomicInteger next = new AtomicInteger();
+        int threads = Math.max(1, Math.min(nproc, num));
+        for (int index = 0; index < threads; index++)
+            tasks.add(() -> {
+                Metrics.Span span = Metrics.task("count");
+                long bases = 0;
+                Table [] results = rolling.tables(total / threads);
+                for (int range; (range = next.getAndIncrement()) < num; ) {
+                    int from = overlap + range*size, to = (int) Math.min(total, (long) from + size);
+                    rolling.count(seq, from, to, results);
+                    bases += to - from;
+                }
+                for (Result result : results)
+                    result.seal();
+                span.end(0, bases);
+                return results;
+            });
+        return tasks;
+    }
+
+    /**
+     * count the lengths that need hash tables with every key owned by a single partition, chosen by the high bits
+     * of a hash of the key, so each partition's table is disjoint from the others, with no duplicated keys and
+     * nothing to merge. the ranges are rolled in parallel as for createRangeTasks, and each thread routes its keys
+     * to the partitions through a batch buffer per partition. a full batch for the thread's own partition is added
+     * to its table directly, and the others are queued for their owners, which drain their queues between blocks,
+     * and after all the ranges are rolled each owner drains what's left.
+     * the dense and wide lengths are counted per thread, as for createRangeTasks
+     */
+    static class Partitioned {
+        /** the number of keys per batch */
+        static final int batchSize = 1<<12;
+
+        final Rolling rolling;
+        final int parts;
+        /** whether each length is routed to the partitions */
+        final boolean [] routed;
+        /** the table of each partition for each routed length */
+        final Counts [][] tables;
+        /** the queued batches of each partition for each length */
+        final List<ConcurrentLinkedQueue<long[]>> queues = new ArrayList<>();
+        /** full batches that have been drained, for reuse */
+        final ConcurrentLinkedQueue<long[]> spare = new ConcurrentLinkedQueue<>();
+
+        Partitioned(int [] frags, Options opts, int parts, long windows) {
+            rolling = new Rolling(frags, opts);
+            this.parts = parts;
+            routed = new boolean[frags.length];
+            tables = new Counts[frags.length][];
+            for (int jj=0; jj < frags.length; jj++) {
+                routed[jj] = !Result.dense(frags[jj], windows / parts) && frags[jj] <= 32;
+                if (routed[jj]) {
+                    tables[jj] = new Counts[parts];
+                    for (int part=0; part < parts; part++)
+                        tables[jj][part] = (Counts) Result.of(frags[jj], opts, windows / parts);
+                }
+                for (int part=0; part < parts; part++)
+                    queues.add(new ConcurrentLinkedQueue<>());
+            }
+        }
+
+        int partition(long key) {
+            return (int) (((CountMinSketch.mix(key) >>> 32) * parts) >>> 32);
+        }
+
+        ConcurrentLinkedQueue<long[]> queue(int jj, int part) {
+            return queues.get(jj*parts + part);
+        }
+
+        /** add the queued batches of the partition to its table, which only its owner may do */
+        void drain(int jj, int part) {
+            Counts table = tables[jj][part];
+            ConcurrentLinkedQueue<long[]> queue = queue(jj, part);
+            for (long [] batch; (batch = queue.poll()) != null; ) {
+                int size = (int) batch[0];
+                for (int ii=1; ii <= size; ii++)
+                    table.add(batch[ii], 1);
+                if (batch.length==batchSize+1)
+                    spare.add(batch);
+            }
+        }
+
+        /**
+         * the keys of a length from a single thread, batched by partition, with the count of each batch first.
+         * the sink for the length in Rolling.count
+         */
+        class Router implements KeySink {
+            final int jj, self;
+            final long [][] batches = new long[parts][];
+
+            Router(int jj, int self) {
+                this.jj = jj;
+                this.self = self;
+                for (int part=0; part < parts; part++)
+                    batches[part] = new long[batchSize+1];
+            }
+
+            public final void add(long key, int count) {
+                for (int ii=0; ii < count; ii++)
+                    route(key);
+            }
+            void route(long key) {
+                int part = partition(key);
+                long [] batch = batches[part];
+                batch[(int) ++batch[0]] = key;
+                if (batch[0]==batchSize)
+                    flush(part);
+            }
+            void flush(int part) {
+                long [] batch = batches[part];
+                if (part==self) {
+                    Counts table = tables[jj][self];
+                    for (int ii=1; ii <= batch[0]; ii++)
+                        table.add(batch[ii], 1);
+                    batch[0] = 0;
+                    return;
+                }
+                if (batch[0]==0) return;
+                queue(jj, part).add(batch);
+                long [] next = spare.poll();
+                if (next==null) next = new long[batchSize+1];
+                next[0] = 0;
+                batches[part] = next;
+            }
+            void flush() {
+                for (int part=0; part < parts; part++)
+                    flush(part);
+            }
+        }
+
+        /**
+         * roll the ranges, returning the per-thread results of the lengths that aren't routed.
+         * the thread owns the partition of the same index
+         */
+        Result[] scan(knucleotide knuc, int self, AtomicInteger next, int num) {
+            int [] frags = rolling.frags;
+            Sink [] sinks = new Sink[frags.length];
+            for (int jj=0; jj < frags.length; jj++)
+                sinks[jj] = routed[jj] ? new Router(jj, self) : Result.of(frags[jj], rolling.opts, knuc.total / parts);
+            int size = rolling.rangeSize;
+            for (int range; (range = next.getAndIncrement()) < num; ) {
+                int from = range*size, to = (int) Math.min(knuc.total, (long) from + size);
+                for (int block = from; block < to; block += rolling.blockSize) {
+                    rolling.count(knuc.seq, block, Math.min(to, block + rolling.blockSize), sinks);
+                    for (int jj=0; jj < frags.length; jj++)
+                        if (routed[jj]) drain(jj, self);
+                }
+            }
+            ArrayList<Result> local = new ArrayList<>();
+            for (int jj=0; jj < frags.length; jj++)
+                if (routed[jj]) ((Router) sinks[jj]).flush();
+                else local.add((Result) sinks[jj]);
+            return local.toArray(new Result[0]);
+        }
+    }
+
+    /** count the lengths with Partitioned, returning the per-thread results and then the partitions' tables */
+    List<Result> partition(int [] frags, Options opts, ExecutorService pool) throws Exception {
+        int size = new Rolling(frags, opts).rangeSize;
+        int num = (int) ((total + size - 1) / size);
+        int threads = Math.max(1, Math.min(nproc, num));
+        Partitioned partitioned = new Partitioned(frags, opts, threads, total);
+        AtomicInteger next = new AtomicInteger();
+        List<Callable<Result[]>> scans = new ArrayList<>();
+        for (int index = 0; index < threads; index++) {
+            int self = index;
+            scans.add(() -> {
+                Metrics.Span span = Metrics.task("scan");
+                Result [] local = partitioned.scan(this, self, next, num);
+                span.end();
+                return local;
+            });
+        }
+        List<Result> results = new ArrayList<>();
+        for (Future<Result[]> future : pool.invokeAll(scans))
+            results.addAll(Arrays.asList(future.get()));
+        List<Callable<Void>> drains = new ArrayList<>();
+        for (int index = 0; index < threads; index++) {
+            int part = index;
+            drains.add(() -> {
+                Metrics.Span span = Metrics.task("drain");
+                for (int jj=0; jj < frags.length; jj++)
+                    if (partitioned.routed[jj]) partitioned.drain(jj, part);
+                span.end();
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(drains))
+            future.get();
+        for (int jj=0; jj < frags.length; jj++)
+            if (partitioned.routed[jj])
+                results.addAll(Arrays.asList(partitioned.tables[jj]));
+        return results;
+    }
+
+    /**
+     * count the decoded blocks as they arrive from the reader rather than collating the whole sequence first.
+     * each block is packed along with the last max-1 bases of the previous one so windows that span blocks
+     * are counted exactly once, and the number of blocks in flight is bounded, so memory depends on the
+     * block size rather than the sequence length
+     */
+    static class Streamer {
+        final Rolling rolling;
+        final ExecutorService pool;
+        final Semaphore inflight;
+        final int overlap;
+        /** pack the codes 8 at a time, see Swar */
+        final boolean swar;
+        final List<Table[]> tables = Collections.synchronizedList(new ArrayList<>());
+        /** per-thread results, so the counting tasks never contend */
+        final ThreadLocal<Table[]> local;
+        final ArrayList<Future<?>> futures = new ArrayList<>();
+        byte [] tail = new byte[0];
+        long total;
+
+        Streamer(int [] frags, Options opts, ExecutorService pool) {
+            rolling = new Rolling(frags, opts);
+            this.pool = pool;
+            inflight = new Semaphore(opts.inflight);
+            swar = opts.swar();
+            overlap = Arrays.stream(frags).max().orElse(1) - 1;
+            local = ThreadLocal.withInitial(() -> {
+                Table [] results = rolling.tables();
+                tables.add(results);
+                return results;
+            });
+        }
+
+        /** wait for a block to be released, called before each block enters the pipeline */
+        void acquire() {
+            if (inflight.tryAcquire()) return;
+            Metrics.Wait wait = Metrics.waiting("inflight");
+            inflight.acquireUninterruptibly();
+            wait.end();
+        }
+
+        /** count a block of num codes, called by the collator for each block in order */
+        void accept(byte [] codes, int num) {
+            Packed packed = new Packed(tail.length + num);
+            packed.append(tail, tail.length, swar);
+            packed.append(codes, num, swar);
+            int from = tail.length;
+            futures.add(pool.submit(() -> {
+                try {
+                    Metrics.Span span = Metrics.span("count");
+                    rolling.count(packed, from, packed.size, local.get());
+                    span.end(0, packed.size - from);
+                }
+                finally {
+                    inflight.release();
+                }
+            }));
+            total += num;
+            int keep = Math.min(overlap, tail.length + num);
+            int fromBlock = Math.min(keep, num), fromTail = keep - fromBlock;
+            byte [] next = new byte[keep];
+            System.arraycopy(tail, tail.length - fromTail, next, 0, fromTail);
+            System.arraycopy(codes, num - fromBlock, next, fromTail, fromBlock);
+            tail = next;
+        }
+
+        /** wait for the counting to complete and return the per-thread results */
+        List<Result> finish() throws Exception {
+            for (Future<?> future : futures)
+                future.get();
+            List<Result> results = new ArrayList<>();
+            for (Table [] table : tables)
+                results.addAll(Arrays.asList(table));
+            List<Callable<Void>> seals = new ArrayList<>();
+            for (Result result : results)
+                seals.add(() -> {
+                    result.seal();
+                    return null;
+                });
+            for (Future<Void> future : pool.invokeAll(seals))
+                future.get();
+            return results;
+        }
+    }
+
+    /** the sum of the results for a fragment length, in a result suited to the options and the total windows */
+    static Table merge(List<Result> results, int frag, Options opts, long windows) {
+        Metrics.Span span = Metrics.span("reduce").frag(frag);
+        Table merged = Result.of(frag, opts, windows);
+        for (Result result : results)
+            if (result.frag==frag) merged.reduce(result);
+        span.end(0, windows);
+        return merged;
+    }
+
+    static String writeCount(List<Result> results, String frag) throws Exception {
+        byte[] key = toCodes(frag.getBytes(StandardCharsets.ISO_8859_1),frag.length());
+        int count = 0;
+        long error = 0;
+        for (Result result : results) {
+            count += result.count(key);
+            if (result.frag==key.length) error += result.error();
+        }
+        return count + "\t" + frag + (error > 0 ? "\terror " + error:"") + '\n';
+    }
+
+    /**
+     * writes the frequencies of a table straight to a stream, with no String or boxed entry per key.
+     * the entries are copied to a pair of primitive arrays and sorted together, most frequent first and then by key,
+     * and each chunk of entries is decoded into a reused byte buffer, in parallel for large tables, and written in order.
+     * the formats are
+     *   text:   "fragment percent" lines, with the percent rounded exactly as %.3f, then a blank line,
+     *           and for approximate counts "fragment percent error percent"
+     *   tsv:    "fragment\tcount" lines, and for approximate counts "fragment\tcount\terror"
+     *   binary: little endian, the length (int) and the number of entries (long), then the key (long) and count (int)
+     *           of each entry, for exact tables of up to 32 bases
+     */
+    static class Output {
+        /** formats the sorted entries [from,to) into a buffer, returning the number of bytes */
+        interface Formatter {
+            int format(int from, int to, byte [] buf);
+        }
+
+        static final int text = 0, tsv = 1, binary = 2;
+        /** the number of entries per chunk */
+        static final int chunkSize = 1<<16;
+        static final byte [] bases = { 'A', 'C', 'G', 'T' };
+        static final byte [] errorText = " error ".getBytes(StandardCharsets.ISO_8859_1);
+
+        final String format;
+        final int kind;
+        /** the pool that formats the chunks, or null to format them in the calling thread */
+        final ExecutorService pool;
+
+        Output(String format, ExecutorService pool) {
+            this.format = format;
+            this.pool = pool;
+            switch (format) {
+                case "text": kind = text; break;
+                case "tsv": kind = tsv; break;
+                case "binary": kind = binary; break;
+                default: throw new IllegalArgumentException("unknown format: " + format);
+            }
+        }
+
+        /** the most bytes an entry of the length takes, ie a count of 10 digits or a percent of 100.000 */
+        int entrySize(int frag) {
+            return kind==binary ? 12 : frag + 12;
+        }
+
+        <R extends Result & Keyed> void write(R result, float totalCount, OutputStream out) throws IOException {
+            int frag = result.frag, size = result.size();
+            header(frag, size, out);
+            // negated counts and offset keys, so a single signed sort orders by count descending then unsigned key
+            long [] order = new long[size], keys = new long[size];
+            int [] num = new int[1];
+            result.forEach((key, count) -> {
+                order[num[0]] = -(long) count;
+                keys[num[0]++] = key + Long.MIN_VALUE;
+            });
+            entries(order, keys, size, frag, totalCount, out);
+            end(out);
+        }
+
+        /** write what precedes the entries of a table of the length and size */
+        void header(int frag, long size, OutputStream out) throws IOException {
+            if (kind==binary && frag > 32)
+                throw new IllegalArgumentException("the binary format is limited to 32 bases: " + frag);
+            if (kind==binary) {
+                byte [] header = new byte[12];
+                putLong(header, putInt(header, 0, frag), size);
+                out.write(header);
+            }
+        }
+
+        /** write what follows the entries of a table */
+        void end(OutputStream out) throws IOException {
+            if (kind==text)
+                out.write('\n');
+        }
+
+        /**
+         * sort the first size entries, as negated counts and offset keys, and write them,
+         * so a table can be written as consecutive batches of entries, eg by count
+         */
+        void entries(long [] order, long [] keys, int size, int frag, float totalCount, OutputStream out) throws IOException {
+            entries(order, keys, size, size, null, frag, totalCount, out);
+        }
+
+        /**
+         * sort the first size entries and write the first limit of them,
+         * with the bound on the overcount of each key given by errors, unless it's null
+         */
+        void entries(long [] order, long [] keys, int size, int limit, LongUnaryOperator errors, int frag, float totalCount,
+                OutputStream out) throws IOException {
+            LongArrays.parallelQuickSort(order, keys, 0, size);
+            chunks(limit, entrySize(frag) + (errors==null ? 0 : 20),
+                    (from, to, buf) -> format(order, keys, errors, from, to, frag, totalCount, buf), out);
+        }
+
+        /**
+         * sort the entries of keys longer than 32 bases, as negated counts and the words of the keys, width each and the
+         * most significant first, most frequent first and then by key, and write them
+         */
+        void entries(long [] order, long [] words, int width, int size, int frag, float totalCount, OutputStream out)
+                throws IOException {
+            // the entries are sorted by their index, with the key's words left in place
+            int [] index = new int[size];
+            for (int ii=0; ii < size; ii++)
+                index[ii] = ii;
+            it.unimi.dsi.fastutil.Arrays.parallelQuickSort(0, size, (a, b) -> {
+                int cmp = Long.compare(order[a], order[b]);
+                for (int ii=0; cmp==0 && ii < width; ii++)
+                    cmp = Long.compareUnsigned(words[index[a]*width + ii], words[index[b]*width + ii]);
+                return cmp;
+            }, (a, b) -> {
+                long count = order[a];
+                order[a] = order[b];
+                order[b] = count;
+                int entry = index[a];
+                index[a] = index[b];
+                index[b] = entry;
+            });
+            chunks(size, entrySize(frag), (from, to, buf) -> {
+                int pos = 0;
+                for (int ii=from; ii < to; ii++) {
+                    int last = index[ii]*width + width-1;
+                    for (int jj=0; jj < frag; jj++)
+                        buf[pos+frag-1-jj] = bases[(int) (words[last - (jj >>> 5)] >>> 2*(jj & 31)) & 3];
+                    pos = count(buf, pos + frag, (int) -order[ii], -1, totalCount);
+                }
+                return pos;
+            }, out);
+        }
+
+        /** format the size entries in chunks of at most entrySize bytes each, and write them in order */
+        void chunks(int size, int entrySize, Formatter formatter, OutputStream out) throws IOException {
+            int chunks = (size + chunkSize - 1) / chunkSize;
+            int inflight = pool==null || chunks < 2 ? 1 : 2*nproc;
+            ArrayDeque<byte[]> free = new ArrayDeque<>(), busy = new ArrayDeque<>();
+            ArrayDeque<Future<Integer>> lengths = new ArrayDeque<>();
+            try {
+                for (int chunk=0; chunk < chunks; chunk++) {
+                    if (lengths.size()==inflight)
+                        free.add(flush(busy, lengths, out));
+                    byte [] buf = free.isEmpty() ? new byte[Math.min(size, chunkSize) * entrySize] : free.poll();
+                    int from = chunk * chunkSize, to = Math.min(size, from + chunkSize);
+                    busy.add(buf);
+                    lengths.add(inflight==1 ? CompletableFuture.completedFuture(formatter.format(from, to, buf))
+                            : pool.submit(() -> formatter.format(from, to, buf)));
+                }
+                while (! lengths.isEmpty())
+                    flush(busy, lengths, out);
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ex.getCause();
+                throw new IOException(ex.getCause());
+            }
+            finally {
+                for (Future<Integer> future : lengths)
+                    future.cancel(false);
+            }
+        }
+
+        /** write the oldest chunk once it's formatted, returning its buffer */
+        static byte[] flush(ArrayDeque<byte[]> busy, ArrayDeque<Future<Integer>> lengths, OutputStream out)
+                throws IOException, InterruptedException, ExecutionException {
+            Metrics.Wait wait = Metrics.waiting("format");
+            int length = lengths.peek().get();
+            wait.end();
+            lengths.poll();
+            byte [] buf = busy.poll();
+            out.write(buf, 0, length);
+            return buf;
+        }
+
+        /** format the entries [from,to) into the buffer, with their errors unless that's null, returning the number of bytes */
+        int format(long [] order, long [] keys, LongUnaryOperator errors, int from, int to, int frag, float totalCount,
+                byte [] buf) {
+            int pos = 0;
+            for (int ii=from; ii < to; ii++) {
+                long key = keys[ii] - Long.MIN_VALUE;
+                int count = (int) -order[ii];
+                if (kind==binary) {
+                    pos = putInt(buf, putLong(buf, pos, key), count);
+                    continue;
+                }
+                long error = errors==null ? -1 : errors.applyAsLong(key);
+                for (int jj=pos+frag-1; jj >= pos; jj--, key >>>= 2)
+                    buf[jj] = bases[(int) key & 3];
+                pos = count(buf, pos + frag, count, error, totalCount);
+            }
+            return pos;
+        }
+
+        /** write what follows the key of a text or tsv entry, ie its count, its error unless that's negative, and the newline */
+        int count(byte [] buf, int pos, int count, long error, float totalCount) {
+            if (kind==text) {
+                buf[pos++] = ' ';
+                pos = percent(buf, pos, count * 100.0f / totalCount);
+                if (error >= 0) {
+                    for (byte letter : errorText)
+                        buf[pos++] = letter;
+                    pos = percent(buf, pos, error * 100.0f / totalCount);
+                }
+            }
+            else {
+                buf[pos++] = '\t';
+                pos = digits(buf, pos, count);
+                if (error >= 0) {
+                    buf[pos++] = '\t';
+                    pos = digits(buf, pos, error);
+                }
+            }
+            buf[pos++] = '\n';
+            return pos;
+        }
+
+        /**
+         * write the float to 3 decimal places, the same as %.3f, which rounds the exact binary value half up.
+         * the value is at most 100 so its mantissa times 1000 fits a long, and the rounding is a shift
+         */
+        static int percent(byte [] buf, int pos, float value) {
+            int bits = Float.floatToRawIntBits(value);
+            int exp = (bits >>> 23) & 0xff;
+            long mant = bits & 0x7fffff;
+            if (exp==0) exp = 1;
+            else mant |= 1 << 23;
+            int shift = 150 - exp;
+            long m = mant * 1000, scaled;
+            if (shift <= 0) scaled = m << -shift;
+            else if (shift > 62) scaled = 0;
+            else scaled = (m + (1L << (shift-1))) >> shift;
+            pos = digits(buf, pos, scaled / 1000);
+            int frac = (int) (scaled % 1000);
+            buf[pos++] = '.';
+            buf[pos++] = (byte) ('0' + frac / 100);
+            buf[pos++] = (byte) ('0' + frac / 10 % 10);
+            buf[pos++] = (byte) ('0' + frac % 10);
+            return pos;
+        }
+
+        /** write the non negative value in decimal */
+        static int digits(byte [] buf, int pos, long value) {
+            int end = pos + 1;
+            for (long rest = value / 10; rest > 0; rest /= 10)
+                end++;
+            for (int ii=end-1; ii >= pos; ii--, value /= 10)
+                buf[ii] = (byte) ('0' + value % 10);
+            return end;
+        }
+
+        static int putInt(byte [] buf, int pos, int value) {
+            for (int ii=0; ii < 4; ii++, value >>>= 8)
+                buf[pos++] = (byte) value;
+            return pos;
+        }
+
+        static int putLong(byte [] buf, int pos, long value) {
+            for (int ii=0; ii < 8; ii++, value >>>= 8)
+                buf[pos++] = (byte) value;
+            return pos;
+        }
+    }
+
+    /**
+     * a batch of fragments to look up, eg primers or guides, as newline separated text.
+     * the fragments are encoded in a single pass over the bytes, with no String per fragment,
+     * grouped by length and sorted by key, so each length is resolved against a single table,
+     * in parallel and with repeated fragments looked up once, and the counts are returned as an int array
+     */
+    static class Probes {
+        final byte [] text;
+        /** the range of each fragment in the text */
+        final int [] starts, ends;
+        /** the length to look up, or 0 if the fragment isn't all nucleotides */
+        final int [] frags;
+        /** the key of each fragment of up to 32 bases */
+        final long [] keys;
+        int size;
+        /** the number of fragments per task */
+        int chunkSize = 1<<16;
+
+        Probes(byte [] text, int length) {
+            this.text = text;
+            int num = 0;
+            for (int ii=0; ii < length; ii++)
+                if (text[ii]==nln) num++;
+            num++;
+            starts = new int[num];
+            ends = new int[num];
+            frags = new int[num];
+            keys = new long[num];
+            for (int pos = 0; pos < length; ) {
+                int start = pos, end;
+                for (; pos < length && text[pos] != nln; pos++);
+                // the line without its newline, or crlf
+                end = pos++;
+                if (end > start && text[end-1]=='\r') end--;
+                if (end==start) continue;
+                long key = 0;
+                boolean valid = true;
+                for (int ii = start; ii < end; ii++) {
+                    int lower = text[ii] | 0x20;
+                    valid &= lower=='a' || lower=='c' || lower=='g' || lower=='t';
+                    key = (key << 2) | (codes[lower & 0x7] & 3);
+                }
+                starts[size] = start;
+                ends[size] = end;
+                frags[size] = valid ? end - start:0;
+                keys[size++] = key;
+            }
+        }
+
+        Probes(String ... frags) {
+            this(String.join("\n", frags).getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        Probes(byte [] text) {
+            this(text, text.length);
+        }
+
+        /** the probes in the file, or if it's "-", the lines of the input up to an empty line or the end */
+        static Probes read(String file, InputStream in) throws IOException {
+            if (! file.equals("-"))
+                return new Probes(Files.readAllBytes(Paths.get(file)));
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            for (int next, last = nln, start = 0; (next = in.read()) >= 0; last = next) {
+                if (next==nln) {
+                    int length = text.size() - start;
+                    if (length==0 || length==1 && last=='\r') break;
+                    start = text.size() + 1;
+                }
+                text.write(next);
+            }
+            return new Probes(text.toByteArray());
+        }
+
+        /** the distinct lengths, in order */
+        int [] frags() {
+            return Arrays.stream(frags, 0, size).filter(frag -> frag > 0).distinct().sorted().toArray();
+        }
+
+        /** the codes of a fragment, in canonical form if requested, only used for fragments longer than 32 bases */
+        byte [] codes(int index, boolean canonical) {
+            String frag = new String(text, starts[index], ends[index] - starts[index], StandardCharsets.ISO_8859_1);
+            return toCodes((canonical ? canonical(frag) : frag).getBytes(StandardCharsets.ISO_8859_1), frag.length());
+        }
 
+        /**
+         * the count of each fragment, in the results of counting a sequence of the given length,
+         * which must include every length of the fragments
+         */
+        int [] lookup(List<Result> results, long length, Options opts, ExecutorService pool) throws Exception {
+            int [] counts = new int[size];
+            int [] lengths = frags();
+            // group by length with a counting sort, then sort each group by key, keeping the index of each fragment
+            int [] groups = new int[lengths.length + 1];
+            for (int ii=0; ii < size; ii++)
+                if (frags[ii] > 0) groups[Arrays.binarySearch(lengths, frags[ii]) + 1]++;
+            for (int jj=0; jj < lengths.length; jj++)
+                groups[jj+1] += groups[jj];
+            long [] sorted = new long[groups[lengths.length]], order = new long[sorted.length];
+            int [] fill = Arrays.copyOf(groups, lengths.length);
+            for (int ii=0; ii < size; ii++) {
+                if (frags[ii]==0) continue;
+                int frag = frags[ii], pos = fill[Arrays.binarySearch(lengths, frag)]++;
+                long key = keys[ii];
+                if (opts.canonical && frag <= 32)
+                    key = Result.canonical(key, Result.reverseComplement(key, frag));
+                sorted[pos] = key;
+                order[pos] = ii;
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            Result [] tables = new Result[lengths.length];
+            for (int jj=0; jj < lengths.length; jj++) {
+                int frag = lengths[jj], from = groups[jj], to = groups[jj+1];
+                tables[jj] = table(results, frag, opts, Math.max(0, length - frag + 1));
+                Result table = tables[jj];
+                if (frag <= 32)
+                    LongArrays.parallelQuickSort(sorted, order, from, to);
+                for (int chunk = from; chunk < to; chunk += chunkSize) {
+                    int first = chunk, last = Math.min(to, chunk + chunkSize);
+                    futures.add(pool.submit(() -> {
+                        if (frag > 32)
+                            for (int ii = first; ii < last; ii++)
+                                counts[(int) order[ii]] = table.count(codes((int) order[ii], opts.canonical));
+                        else
+                            for (int ii = first, count = 0; ii < last; ii++) {
+                                if (ii==first || sorted[ii] != sorted[ii-1])
+                                    count = ((Keyed) table).get(sorted[ii]);
+                                counts[(int) order[ii]] = count;
+                            }
+                    }));
+                }
+            }
+            for (Future<?> future : futures)
+                future.get();
+            for (int jj=0; jj < lengths.length; jj++)
+                if (! results.contains(tables[jj]))
+                    tables[jj].free();
+            return counts;
+        }
 
-    static String writeCount(List<Future<Result>> futures, String frag) throws Exception {
-        byte[] key = toCodes(frag.getBytes(StandardCharsets.ISO_8859_1),frag.length());
-        long k = Result.getKey(key, 0, frag.length());
-        int count = 0;
-        for (Future<Result> future : futures)
-            count += future.get().get(frag.length(),k);
-        return count + "\t" + frag + '\n';
+        /** the result for the length, merging the results if there's more than one */
+        static Result table(List<Result> results, int frag, Options opts, long windows) {
+            Result table = null;
+            for (Result result : results)
+                if (result.frag==frag) {
+                    if (table != null) return merge(results, frag, opts, windows);
+                    table = result;
+                }
+            if (table==null)
+                throw new IllegalArgumentException("length wasn't counted: " + frag);
+            return table;
+        }
+
+        /** write the count and fragment of each of the fragments, in order, a line each */
+        void write(int [] counts, OutputStream out) throws IOException {
+            byte [] digits = new byte[12];
+            for (int ii=0; ii < size; ii++) {
+                int num = 0;
+                for (int count = counts[ii]; num==0 || count > 0; count /= 10)
+                    digits[digits.length - ++num] = (byte) ('0' + count % 10);
+                out.write(digits, digits.length - num, num);
+                out.write('\t');
+                out.write(text, starts[ii], ends[ii] - starts[ii]);
+                out.write(nln);
+            }
+        }
     }
 
     /**
@@ -126,6 +2177,28 @@ public class knucleotide {
         return new String(res);
     }
 
+    /** Convert a wide key, most significant word first, to the nucleotides string */
+    static String keyToString(long [] key, int length) {
+        char[] res = new char[length];
+        for (int i = 0; i < length; i++) {
+            long word = key[key.length - 1 - (i >>> 5)];
+            res[length - i - 1] = nucleotides[(int) ((word >>> 2*(i & 31)) & 0x3)];
+        }
+        return new String(res);
+    }
+
+
+    /** the lesser of the fragment and its reverse complement, ie the form that's counted in canonical mode */
+    static String canonical(String frag) {
+        byte [] key = toCodes(frag.getBytes(StandardCharsets.ISO_8859_1),frag.length());
+        char [] fwd = new char[key.length], rc = new char[key.length];
+        for (int ii=0; ii < key.length; ii++) {
+            fwd[ii] = nucleotides[key[ii]];
+            rc[key.length - 1 - ii] = nucleotides[3 - key[ii]];
+        }
+        String forward = new String(fwd), reverse = new String(rc);
+        return forward.compareTo(reverse) <= 0 ? forward : reverse;
+    }
 
     /**
      * Convert given byte array (limiting to given length) containing acgtACGT
@@ -144,6 +2217,24 @@ public class knucleotide {
     static final int nln = '\n';
 
 
+    /**
+     * a source of blocks of fasta text, eg an input stream or fasta.Source.
+     * each block is handed over to the reader, which decodes it in place, so the source must not reuse the arrays
+     */
+    interface Blocks {
+        /** the next block, backed by an array, or null at the end of the input */
+        ByteBuffer next() throws IOException;
+
+        /** the blocks of the stream, read into a new array each */
+        static Blocks of(InputStream is, int blockSize) {
+            return () -> {
+                byte [] raw = new byte[blockSize];
+                int num = is.read(raw);
+                return num < 0 ? null : ByteBuffer.wrap(raw, 0, num);
+            };
+        }
+    }
+
     static class Reader {
     
         /** 
@@ -156,56 +2247,127 @@ public class knucleotide {
         int ki = 0;
         /** number of elements in the knuc data buffer */
         int kn = 0;
+        /** the number of bytes read */
+        long bytes;
         byte [] raw;
-        volatile Wrapper [] wrapped = new Wrapper[1<<16];
-        Decoder task = new Decoder();
-        Collator task2 = new Collator();
-        int kwrap = 0;
-        volatile byte [] finish;
-        volatile int fsize;
-        {
-            task.start();
-            if (nproc > 3) task2.start();
-        }
-        
-        static void noop() {
-            try {
-                Thread.sleep(0);
+        Blocks blocks;
+        boolean ended;
+        final Ring ring;
+        final Decoder [] decoders;
+        final Collator collator = new Collator();
+        volatile Packed finish;
+        /** when streaming, the collated blocks are counted as they arrive rather than appended to the sequence */
+        final Streamer streamer;
+        /** decode a word at a time, see Swar, rather than a byte at a time */
+        final boolean swar;
+
+        Reader() { this(new Options(), null); }
+
+        Reader(Options opts, Streamer streamer) {
+            this.streamer = streamer;
+            swar = opts.swar();
+            decoders = new Decoder[opts.decoders];
+            ring = new Ring(Integer.highestOneBit(Math.max(16, 2*opts.decoders) - 1) << 1);
+            for (int ii=0; ii < decoders.length; ii++)
+                (decoders[ii] = new Decoder()).start();
+            collator.start();
+        }
+
+        /**
+         * a bounded ring of blocks, written by the reading thread, decoded by any of the decoders
+         * and consumed in order by the collator.
+         * the indices only grow so there's no limit on the size of the input,
+         * the reader waits for the collator when the ring is full,
+         * and any thread that has to wait parks rather than spinning
+         */
+        class Ring {
+            final AtomicReferenceArray<Wrapper> slots;
+            final int mask;
+            final AtomicLong claimed = new AtomicLong();
+            /** the number of blocks published by the reader */
+            volatile long head;
+            /** the number of blocks consumed by the collator */
+            volatile long tail;
+            volatile boolean closed;
+            volatile Thread producer;
+
+            Ring(int capacity) {
+                slots = new AtomicReferenceArray<>(capacity);
+                mask = capacity-1;
+            }
+
+            void put(Wrapper raw) {
+                producer = Thread.currentThread();
+                while (head - tail > mask)
+                    Metrics.park(this, "read");
+                slots.set((int) head & mask, raw);
+                head++;
+                for (Decoder decoder : decoders)
+                    LockSupport.unpark(decoder);
+            }
+
+            /** no more blocks will be published */
+            void close() {
+                closed = true;
+                for (Decoder decoder : decoders)
+                    LockSupport.unpark(decoder);
+                LockSupport.unpark(collator);
+            }
+
+            /** claim the next block to decode, or null once the ring is closed and every block is claimed */
+            Wrapper claim() {
+                long index = claimed.getAndIncrement();
+                for (;;) {
+                    boolean done = closed;
+                    if (index < head) return slots.get((int) index & mask);
+                    if (done) return null;
+                    Metrics.park(this, "decode");
+                }
+            }
+
+            /** the next block in order once it's decoded, or null once the ring is closed and drained */
+            Wrapper take() {
+                for (;;) {
+                    boolean done = closed;
+                    long index = tail;
+                    if (index < head) {
+                        Wrapper raw = slots.get((int) index & mask);
+                        if (raw.position >= 0) return raw;
+                    }
+                    else if (done) return null;
+                    Metrics.park(this, "collate");
+                }
+            }
+
+            /** release the block returned by take */
+            void release() {
+                slots.set((int) tail & mask, null);
+                tail++;
+                LockSupport.unpark(producer);
             }
-            catch (InterruptedException ex) {}
         }
 
         class Decoder extends Thread {
             public void run() {
-                int kraw = 0;
-                for (Wrapper raw; true; kraw++) {
-                    while ((raw = wrapped[kraw])==null) noop();
-                    if (raw.data==null)
-                        break;
-                    raw.make();
+                for (Wrapper raw; (raw = ring.claim()) != null; ) {
+                    Metrics.Span span = Metrics.span("decode");
+                    if (swar) raw.make();
+                    else raw.makeScalar();
+                    span.end(raw.size - raw.start, raw.position);
+                    LockSupport.unpark(collator);
                 }
-                if (nproc <= 3) task2.run();
             }
         }
         class Collator extends Thread {
             public void run() {
-                int kraw = 0;
-                int total = 0;
-                byte [] data = new byte[blockSize];
-                int num;
-                for (Wrapper raw; true; kraw++) {
-                    while ((raw = wrapped[kraw])==null || (num = raw.position) < 0) noop();
-                    if (raw.data==null)
-                        break;
-                    if (num+total > data.length) {
-                        byte [] next = new byte[data.length*2];
-                        System.arraycopy(data,0,next,0,total);
-                        data = next;
-                    }
-                    System.arraycopy(raw.data,0,data,total,num);
-                    total += num;
+                Packed data = new Packed(blockSize);
+                for (Wrapper raw; (raw = ring.take()) != null; ) {
+                    Metrics.Span span = Metrics.span("collate");
+                    if (streamer != null) streamer.accept(raw.data,raw.position);
+                    else data.append(raw.data,raw.position,swar);
+                    span.end(0, raw.position);
+                    ring.release();
                 }
-                fsize = total;
                 finish = data;
             }
         }
@@ -221,6 +2383,9 @@ public class knucleotide {
                 position = -1;
             }
             int make() {
+                return position = Swar.decode(data, start, size);
+            }
+            int makeScalar() {
                 int kdata = 0;
                 for (int ii=start; ii < size; ii++) {
                     byte val = data[ii];
@@ -233,65 +2398,1150 @@ public class knucleotide {
         }
 
         void place() {
+            if (streamer != null) streamer.acquire();
             Wrapper payload = new Wrapper();
             payload.build(this);
-            wrapped[kwrap++] = payload;
+            ring.put(payload);
             ki = kn;
         }
 
+        /** take the next block, which is decoded in place, returning false at the end of the input */
         boolean read() throws IOException {
-            ki = 0;
-            raw = new byte[blockSize];
-            kn = System.in.read(raw);
-            return kn >= 0;
+            ByteBuffer block = ended ? null : blocks.next();
+            if (block==null) {
+                ended = true;
+                ki = kn = 0;
+                return false;
+            }
+            raw = block.array();
+            ki = block.arrayOffset() + block.position();
+            kn = block.arrayOffset() + block.limit();
+            bytes += kn - ki;
+            return true;
+        }
+
+        void read(knucleotide knuc,InputStream is) throws IOException, InterruptedException {
+            read(knuc, Blocks.of(is, blockSize));
         }
-        
-        void read(knucleotide knuc,InputStream is) throws IOException {
+
+        void read(knucleotide knuc,Blocks blocks) throws IOException, InterruptedException {
+            this.blocks = blocks;
             int kc = 0;
-            loop:
-            while (ki < kn || read())
-                while (ki < kn)
-                    if (raw[ki++]==grt && ++kc==3) break loop;
-            loop:
-            while (ki < kn || read()) {
-                while (ki < kn)
-                    if (raw[ki++]==nln) break loop;
-            }
-            loop:
-            while (ki < kn || read())
-                place();
-            wrapped[kwrap] = new Wrapper();
-
-
-            while (finish==null)
-                if (nproc <= 3) noop();
+            Metrics.Span span = Metrics.span("read");
+            // the ring is closed even if the input fails, so the decoders and collator exit
+            try {
+                loop:
+                while (ki < kn || read())
+                    while (ki < kn)
+                        if (raw[ki++]==grt && ++kc==3) break loop;
+                loop:
+                while (ki < kn || read()) {
+                    while (ki < kn)
+                        if (raw[ki++]==nln) break loop;
+                }
+                while (ki < kn || read())
+                    place();
+            }
+            finally {
+                ring.close();
+            }
+            span.end(bytes, 0);
+
+            Metrics.Wait wait = Metrics.waiting("finish");
+            collator.join();
+            wait.end();
             
             knuc.seq = finish;
-            knuc.total = fsize;
+            knuc.total = finish.size;
+        }
+
+        /** read the third sequence, counting each block as it's decoded */
+        List<Result> stream(knucleotide knuc,Blocks blocks) throws Exception {
+            read(knuc,blocks);
+            knuc.total = streamer.total;
+            return streamer.finish();
+        }
+    }
+
+    /**
+     * map a fasta file and decode the third sequence directly from the mapping,
+     * with no read syscalls and no intermediate copies.
+     * files larger than 2G are mapped as multiple segments
+     */
+    static class Mapper {
+        /** log2 of the size of each mapped segment */
+        static final int segBits = 30;
+        static final long segSize = 1L<<segBits;
+        /** the size of the chunks that are scanned and decoded in parallel */
+        int chunkSize = 1<<22;
+        /** scan and decode a word at a time, see Swar, or a byte at a time */
+        boolean swar = true;
+        MappedByteBuffer [] segs;
+        long size;
+
+        Mapper(String path) throws IOException {
+            try (FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                size = fc.size();
+                segs = new MappedByteBuffer[(int) ((size + segSize - 1) >>> segBits)];
+                for (int ii=0; ii < segs.length; ii++) {
+                    long pos = (long) ii << segBits;
+                    segs[ii] = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(segSize, size-pos));
+                }
+            }
+        }
+
+        /** split the range into chunks that don't cross a segment boundary */
+        LongArrayList chunks(long start, long end) {
+            LongArrayList bounds = new LongArrayList();
+            for (long pos = start; pos < end; ) {
+                bounds.add(pos);
+                long segEnd = (pos | (segSize-1)) + 1;
+                pos = Math.min(Math.min(pos + chunkSize, segEnd), end);
+            }
+            bounds.add(end);
+            return bounds;
+        }
+
+        /** the positions of all the record markers ('>') in the file, in order */
+        LongArrayList markers(ExecutorService pool) throws Exception {
+            LongArrayList bounds = chunks(0, size);
+            ArrayList<Callable<LongArrayList>> tasks = new ArrayList<>();
+            for (int kk=0; kk < bounds.size()-1; kk++) {
+                long start = bounds.getLong(kk), end = bounds.getLong(kk+1);
+                tasks.add(() -> {
+                    MappedByteBuffer seg = segs[(int) (start >>> segBits)];
+                    int base = (int) (start & (segSize-1)), num = (int) (end-start);
+                    LongArrayList found = new LongArrayList();
+                    int ii = 0;
+                    if (swar)
+                        for (; ii + 8 <= num; ii += 8)
+                            if (Swar.equal(seg.getLong(base+ii), Swar.markers) != 0)
+                                for (int jj=ii; jj < ii+8; jj++)
+                                    if (seg.get(base+jj)==grt) found.add(start+jj);
+                    for (; ii < num; ii++)
+                        if (seg.get(base+ii)==grt) found.add(start+ii);
+                    return found;
+                });
+            }
+            LongArrayList found = new LongArrayList();
+            for (Future<LongArrayList> future : pool.invokeAll(tasks))
+                found.addAll(future.get());
+            return found;
+        }
+
+        /** the position after the first newline at or after pos */
+        long skipLine(long pos) {
+            while (pos < size && segs[(int) (pos >>> segBits)].get((int) (pos & (segSize-1))) != nln)
+                pos++;
+            return Math.min(pos+1, size);
+        }
+
+        /** decode the bases in the range into knuc, ignoring newlines */
+        void decode(knucleotide knuc, long start, long end, ExecutorService pool) throws Exception {
+            Packed seq = decode(new long[] { start }, new long[] { end }, pool)[0];
+            knuc.seq = seq;
+            knuc.total = seq.size;
+        }
+
+        /**
+         * decode the bases in each of the ranges into a packed sequence per range, ignoring newlines.
+         * the chunks of all the ranges are processed as a single batch so that many small ranges still
+         * keep every thread busy.
+         * the newlines in each chunk are counted first so that every chunk can be decoded
+         * in parallel directly to its final offset
+         */
+        Packed[] decode(long [] starts, long [] ends, ExecutorService pool) throws Exception {
+            LongArrayList bounds = new LongArrayList();
+            IntArrayList owners = new IntArrayList();
+            for (int rr=0; rr < starts.length; rr++) {
+                LongArrayList chunks = chunks(starts[rr], ends[rr]);
+                for (int kk=0; kk < chunks.size()-1; kk++) {
+                    bounds.add(chunks.getLong(kk));
+                    bounds.add(chunks.getLong(kk+1));
+                    owners.add(rr);
+                }
+            }
+            int num = owners.size();
+            ArrayList<Callable<Integer>> counts = new ArrayList<>();
+            for (int kk=0; kk < num; kk++) {
+                long from = bounds.getLong(2*kk), to = bounds.getLong(2*kk+1);
+                counts.add(() -> {
+                    MappedByteBuffer seg = segs[(int) (from >>> segBits)];
+                    int base = (int) (from & (segSize-1)), end = base + (int) (to-from), nb = 0, ii = base;
+                    if (swar)
+                        for (; ii + 8 <= end; ii += 8)
+                            nb += 8 - Swar.newlines(seg.getLong(ii));
+                    for (; ii < end; ii++)
+                        if (seg.get(ii) != nln) nb++;
+                    return nb;
+                });
+            }
+            List<Future<Integer>> sizes = pool.invokeAll(counts);
+            long [] totals = new long[starts.length];
+            int [] offsets = new int[num];
+            for (int kk=0; kk < num; kk++) {
+                int owner = owners.getInt(kk);
+                offsets[kk] = (int) totals[owner];
+                totals[owner] += sizes.get(kk).get();
+            }
+            Packed [] seqs = new Packed[starts.length];
+            for (int rr=0; rr < starts.length; rr++) {
+                if (totals[rr] > Integer.MAX_VALUE)
+                    throw new IOException("sequence is too long: " + totals[rr]);
+                seqs[rr] = new Packed((int) totals[rr]);
+                seqs[rr].size = (int) totals[rr];
+            }
+            ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+            for (int kk=0; kk < num; kk++) {
+                long from = bounds.getLong(2*kk), to = bounds.getLong(2*kk+1);
+                int offset = offsets[kk];
+                Packed seq = seqs[owners.getInt(kk)];
+                tasks.add(() -> {
+                    Metrics.Span span = Metrics.span("map decode");
+                    MappedByteBuffer seg = segs[(int) (from >>> segBits)];
+                    int base = (int) (from & (segSize-1)), end = base + (int) (to-from), ii = base;
+                    Packed.Filler filler = seq.new Filler(offset);
+                    // the buffer is big endian, so the first byte is the highest lane, as Swar.pack expects
+                    if (swar)
+                        for (; ii + 8 <= end; ii += 8) {
+                            long word = seg.getLong(ii);
+                            if (Swar.equal(word, Swar.newlines)==0)
+                                filler.add8(Swar.pack(Swar.codes(word)));
+                            else
+                                for (int jj=ii; jj < ii+8; jj++) {
+                                    byte val = seg.get(jj);
+                                    if (val != nln) filler.add(codes[val & 0x7]);
+                                }
+                        }
+                    for (; ii < end; ii++) {
+                        byte val = seg.get(ii);
+                        if (val==nln) continue;
+                        filler.add(codes[val & 0x7]);
+                    }
+                    filler.finish();
+                    span.end(to - from, filler.pos - offset);
+                    return filler.pos;
+                });
+            }
+            for (Future<Integer> future : pool.invokeAll(tasks))
+                future.get();
+            return seqs;
+        }
+
+        /** decode the third sequence, ie the same one selected by Reader */
+        void read(knucleotide knuc, ExecutorService pool) throws Exception {
+            Metrics.Span span = Metrics.span("map");
+            long [] range = third(pool);
+            decode(knuc, range[0], range[1], pool);
+            span.end(range[1] - range[0], knuc.total);
+        }
+
+        /** the start and end of the third sequence */
+        long[] third(ExecutorService pool) throws Exception {
+            LongArrayList found = markers(pool);
+            long start = found.size() < 3 ? size : skipLine(found.getLong(2));
+            long end = found.size() > 3 ? found.getLong(3) : size;
+            return new long[] { start, end };
+        }
+
+        byte get(long pos) {
+            return segs[(int) (pos >>> segBits)].get((int) (pos & (segSize-1)));
+        }
+
+        /** the start of the given number of bases before pos, but not before floor, ie the overlap with a prior range */
+        long back(long pos, long floor, int bases) {
+            for (; pos > floor && bases > 0; pos--)
+                if (get(pos-1) != nln) bases--;
+            return pos;
+        }
+
+        /** the number of bases in the range, ie anything but newlines */
+        int bases(long start, long end) {
+            int num = 0;
+            for (long pos = start; pos < end; pos++)
+                if (get(pos) != nln) num++;
+            return num;
+        }
+
+        /** a record in the file, ie a header line and the sequence that follows it */
+        static class Record {
+            /** the ordinal of the record, starting from 1 */
+            int ordinal;
+            String header;
+            /** the range of the sequence, from the end of the header line to the next marker */
+            long start, end;
+            Packed seq;
+        }
+
+        /** index all the records in the file with a single scan for the markers */
+        List<Record> records(ExecutorService pool) throws Exception {
+            LongArrayList found = markers(pool);
+            List<Record> records = new ArrayList<>();
+            for (int ii=0; ii < found.size(); ii++) {
+                Record record = new Record();
+                record.ordinal = ii+1;
+                record.start = skipLine(found.getLong(ii));
+                record.end = ii+1 < found.size() ? found.getLong(ii+1) : size;
+                byte [] header = new byte[(int) Math.min(Integer.MAX_VALUE, record.start - found.getLong(ii) - 1)];
+                for (int jj=0; jj < header.length; jj++) {
+                    long pos = found.getLong(ii) + 1 + jj;
+                    header[jj] = segs[(int) (pos >>> segBits)].get((int) (pos & (segSize-1)));
+                }
+                record.header = new String(header, StandardCharsets.ISO_8859_1).trim();
+                records.add(record);
+            }
+            return records;
+        }
+
+        /** decode the sequences of the records in a single batch */
+        void decode(List<Record> records, ExecutorService pool) throws Exception {
+            long [] starts = new long[records.size()], ends = new long[records.size()];
+            for (int ii=0; ii < starts.length; ii++) {
+                starts[ii] = records.get(ii).start;
+                ends[ii] = records.get(ii).end;
+            }
+            Packed [] seqs = decode(starts, ends, pool);
+            for (int ii=0; ii < seqs.length; ii++)
+                records.get(ii).seq = seqs[ii];
+        }
+    }
+
+    /**
+     * count the records, with a task per range of each record so that many records are counted in parallel,
+     * up to a limited number of bases ahead of the record being written,
+     * writing the results for each record in order as soon as it's complete and then releasing it,
+     * and optionally the combined results for all of them
+     */
+    static void count(List<Mapper.Record> records, Options opts, ExecutorService pool, OutputStream out) throws Exception {
+        int [] frags = opts.frags();
+        Rolling rolling = new Rolling(frags, opts);
+        List<List<Future<Result[]>>> futures = new ArrayList<>();
+        // the bases submitted but not yet written, limited so the tables of many small records don't accumulate
+        long pending = 0, budget = (long) rolling.rangeSize * (nproc+1);
+        int next = 0;
+        List<Result> combined = new ArrayList<>();
+        for (int frag : frags)
+            combined.add(Result.of(frag, opts));
+        long [] lengths = new long[records.size()];
+        for (int rr=0; rr < records.size(); rr++) {
+            for (; next < records.size() && (next==rr || pending < budget); next++) {
+                Packed seq = records.get(next).seq;
+                List<Future<Result[]>> tasks = new ArrayList<>();
+                for (int from = 0; from < seq.size || from==0; from += rolling.rangeSize) {
+                    int start = from, end = (int) Math.min(seq.size, (long) from + rolling.rangeSize);
+                    tasks.add(pool.submit(() -> {
+                        Metrics.Span span = Metrics.task("count");
+                        Table [] results = rolling.count(seq, start, end, rolling.tables(end - start));
+                        for (Result result : results)
+                            result.seal();
+                        span.end(0, end - start);
+                        return results;
+                    }));
+                }
+                futures.add(tasks);
+                pending += seq.size;
+            }
+            Mapper.Record record = records.get(rr);
+            pending -= record.seq.size;
+            List<Result> results = new ArrayList<>();
+            for (Future<Result[]> future : futures.get(rr))
+                results.addAll(Arrays.asList(future.get()));
+            futures.set(rr, null);
+            lengths[rr] = record.seq.size;
+            record.seq = null;
+            out.write(('>' + record.header + '\n').getBytes(StandardCharsets.ISO_8859_1));
+            report(opts, results, out, pool, lengths[rr]);
+            for (Result each : results) {
+                if (opts.combined)
+                    ((Table) combined.get(Arrays.binarySearch(frags, each.frag))).reduce(each);
+                each.free();
+            }
+        }
+        if (opts.combined) {
+            out.write(">combined\n".getBytes(StandardCharsets.ISO_8859_1));
+            report(opts, combined, out, pool, lengths);
+        }
+        for (Result each : combined)
+            each.free();
+    }
+
+    /**
+     * command line options, of the form -name value.
+     * any other argument is the input file
+     */
+    static class Options {
+        String path;
+        /** rolling: a single pass per range for all lengths, offset: a pass per length and offset */
+        String engine = "rolling";
+        /** for the external engine, the bytes of memory for the tables, see External */
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        /** the directory to write the external engine's runs and the shards' indexes to */
+        String spill = System.getProperty("java.io.tmpdir");
+        /** the table for fragments too long to be dense, hash: on heap, offheap: an OffHeapMap, sketch: approximate */
+        String table = "hash";
+        /** the expected number of distinct keys per table, used to presize the tables */
+        long expected;
+        /** the lengths to write the frequencies of */
+        int [] freqs = { 1, 2 };
+        /** count the blocks as they're read, see Streamer */
+        boolean stream;
+        /** the maximum number of blocks in flight when streaming */
+        int inflight = 2*nproc + 2;
+        /** the number of threads decoding the blocks read from the input stream */
+        int decoders = Math.max(1, Math.min(4, nproc/2));
+        /** decode the text a word at a time, swar, or a byte at a time, scalar, see Swar */
+        String decode = "swar";
+        /** the records to count, by ordinal (starting from 1) or all, instead of the third one */
+        String records;
+        /** select the records with exactly this header */
+        String header;
+        /** select the records with a header that matches this regex */
+        String match;
+        /** when counting multiple records, also write the results for all of them combined */
+        boolean combined;
+        /** count each fragment together with its reverse complement, keyed by whichever of the two is less */
+        boolean canonical;
+        /** for the sketch table, the bound on the overcount as a fraction of the windows counted */
+        double epsilon = 1e-5;
+        /** for the sketch table, the probability that a count exceeds the bound */
+        double delta = 0.01;
+        /** for the sketch table, the maximum size in bytes of each sketch and summary, or zero for no limit */
+        long sketchBytes;
+        /** for the sketch table, the number of most frequent keys to write */
+        int top = 64;
+        /** the directory to save the counts to, as an index per length */
+        String save;
+        /** the directory to read saved counts from, rather than counting a sequence */
+        String index;
+        /** with -index, the range and prefix scans to write the counts of the keys of, see Indexed.scan */
+        String [] scans = {};
+        /** with -index, write the frequencies of this many of the most frequent keys of each length rather than all */
+        int topn;
+        /**
+         * a file of fragments to write the counts of, one per line, instead of the frequencies and queries,
+         * or "-" to read them from the input, up to an empty line, before the sequence
+         */
+        String probes;
+        /** write a json summary of the timings, throughput and tables to this file, or stderr if "-", see Metrics */
+        String metrics;
+        /** the number of threads inflating bgzf input */
+        int inflaters = nproc;
+        /** serve jobs on this loopback port (zero for any free port) rather than running a single job, see Server */
+        int port = -1;
+        /** for the server, the directory the files a job names are in, or null if a job can't name files */
+        String root;
+        /** for the server, the most jobs that run at once */
+        int jobs = 1;
+        /** for the server, the estimated bytes that the jobs running at once may use */
+        long memory = Runtime.getRuntime().maxMemory() / 4 * 3;
+        /** for the server, the number of jobs to run on a generated sequence at startup to compile the hot loops */
+        int warmup = 4;
+        /** the format of the frequencies, text, tsv or binary, see Output */
+        String format = "text";
+        /** the file to write the results to, rather than stdout */
+        String output;
+        /** count the output of fasta for this n, generated in the same jvm, rather than reading the input */
+        int generate;
+        /** count the sequence in this many worker processes, a range of the file each, see Shards */
+        int shards;
+        /** the number of times a failed shard is run again before the job fails */
+        int retries = 2;
+        /** for a worker process, the range of the file to count, as "from,start,end", see Shards */
+        String worker;
+        /** the arguments the options were parsed from, which are passed on to the workers */
+        final String [] args;
+        /** the fragments to write the counts of */
+        String [] queries = { "GGT", "GGTA", "GGTATT", "GGTATTTTAATT", "GGTATTTTAATTTATAGT" };
+
+        Options(String ... args) {
+            this.args = args;
+            for (int ii=0; ii < args.length; ii++)
+                switch (args[ii]) {
+                    case "-engine": engine = args[++ii]; break;
+                    case "-budget": budget = Long.parseLong(args[++ii]); break;
+                    case "-spill": spill = args[++ii]; break;
+                    case "-table": table = args[++ii]; break;
+                    case "-expected": expected = Long.parseLong(args[++ii]); break;
+                    case "-freqs": freqs = Arrays.stream(args[++ii].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                    case "-queries": queries = args[++ii].split(","); break;
+                    case "-stream": stream = true; break;
+                    case "-inflight": inflight = Integer.parseInt(args[++ii]); break;
+                    case "-decoders": decoders = Integer.parseInt(args[++ii]); break;
+                    case "-decode": decode = args[++ii]; break;
+                    case "-records": records = args[++ii]; break;
+                    case "-header": header = args[++ii]; break;
+                    case "-match": match = args[++ii]; break;
+                    case "-combined": combined = true; break;
+                    case "-canonical": canonical = true; break;
+                    case "-epsilon": epsilon = Double.parseDouble(args[++ii]); break;
+                    case "-delta": delta = Double.parseDouble(args[++ii]); break;
+                    case "-sketchbytes": sketchBytes = Long.parseLong(args[++ii]); break;
+                    case "-top": top = Integer.parseInt(args[++ii]); break;
+                    case "-save": save = args[++ii]; break;
+                    case "-index": index = args[++ii]; break;
+                    case "-scan": scans = args[++ii].split(","); break;
+                    case "-topn": topn = Integer.parseInt(args[++ii]); break;
+                    case "-probes": probes = args[++ii]; break;
+                    case "-metrics": metrics = args[++ii]; break;
+                    case "-inflaters": inflaters = Integer.parseInt(args[++ii]); break;
+                    case "-serve": port = Integer.parseInt(args[++ii]); break;
+                    case "-root": root = args[++ii]; break;
+                    case "-jobs": jobs = Integer.parseInt(args[++ii]); break;
+                    case "-memory": memory = Long.parseLong(args[++ii]); break;
+                    case "-warmup": warmup = Integer.parseInt(args[++ii]); break;
+                    case "-format": format = args[++ii]; break;
+                    case "-output": output = args[++ii]; break;
+                    case "-generate": generate = Integer.parseInt(args[++ii]); break;
+                    case "-shards": shards = Integer.parseInt(args[++ii]); break;
+                    case "-retries": retries = Integer.parseInt(args[++ii]); break;
+                    case "-worker": worker = args[++ii]; break;
+                    default: path = args[ii];
+                }
+            // the sequence is never held in memory when counting externally, only the blocks in flight
+            if (engine.equals("external")) stream = true;
+            if (engine.equals("external") && Arrays.stream(frags()).anyMatch(frag -> frag > 32))
+                throw new IllegalArgumentException("the external engine counts lengths of up to 32 bases");
+            if (canonical && engine.equals("offset"))
+                throw new IllegalArgumentException("canonical counting requires the rolling engine");
+            if ((save != null || index != null || probes != null) && selecting())
+                throw new IllegalArgumentException("indexes and probes are for a single sequence, not selected records");
+            if ((scans.length > 0 || topn > 0) && index==null)
+                throw new IllegalArgumentException("scans and top keys are read from saved counts, ie -index");
+            new Output(format, null);
+            if (format.equals("binary") && (table.equals("sketch") || Arrays.stream(freqs).anyMatch(frag -> frag > 32)))
+                throw new IllegalArgumentException("the binary format is for exact tables of up to 32 bases");
+            if (format.equals("binary") && selecting())
+                throw new IllegalArgumentException("the binary format is for a single sequence, not selected records");
+            if (! decode.equals("swar") && ! decode.equals("scalar"))
+                throw new IllegalArgumentException("unknown decode: " + decode);
+            // the summary is global, so the jobs it's collected for mustn't overlap
+            if (metrics != null && port >= 0 && jobs > 1)
+                throw new IllegalArgumentException("a server collects metrics for a single job at a time, ie -jobs 1");
+            if (shards > 0 && (generate > 0 || index != null || selecting()))
+                throw new IllegalArgumentException("shards are for the third sequence of an input file");
+            if (shards > 0 && "-".equals(probes))
+                throw new IllegalArgumentException("the probes for shards are read from a file, not the input");
+            if (shards > 0 && ! engine.equals("rolling") && ! engine.equals("sort"))
+                throw new IllegalArgumentException("shards count with the rolling or sort engine");
+            if (shards > 0 && (table.equals("sketch") || Arrays.stream(frags()).anyMatch(frag -> frag > 32)))
+                throw new IllegalArgumentException("shards are for exact tables of up to 32 bases");
+        }
+
+        /** whether to decode a word at a time */
+        boolean swar() {
+            return decode.equals("swar");
+        }
+
+        /** whether records are selected, rather than just the third one */
+        boolean selecting() {
+            return records != null || header != null || match != null;
+        }
+
+        /** the records that match the selection options */
+        List<Mapper.Record> select(List<Mapper.Record> all) {
+            IntOpenHashSet ordinals = new IntOpenHashSet();
+            if (records != null && ! records.equals("all"))
+                for (String ordinal : records.split(","))
+                    ordinals.add(Integer.parseInt(ordinal));
+            Pattern pattern = match==null ? null : Pattern.compile(match);
+            List<Mapper.Record> selected = new ArrayList<>();
+            for (Mapper.Record record : all)
+                if ((records==null || ordinals.isEmpty() || ordinals.contains(record.ordinal))
+                        && (header==null || header.equals(record.header))
+                        && (pattern==null || pattern.matcher(record.header).find()))
+                    selected.add(record);
+            return selected;
+        }
+
+        /** every length that needs to be counted, ie the frequencies, the query and the scan lengths, in order */
+        int [] frags() {
+            IntStream lengths = IntStream.concat(Arrays.stream(queries).mapToInt(String::length),
+                    Arrays.stream(scans).mapToInt(Indexed::length));
+            return IntStream.concat(Arrays.stream(freqs), lengths).distinct().sorted().toArray();
+        }
+    }
+
+    /** count the fragment lengths using the engine selected in the options */
+    List<Result> count(Options opts, ExecutorService pool, int [] frags) throws Exception {
+        List<Result> results = new ArrayList<>();
+        if (opts.engine.equals("offset"))
+            for (Future<Result> future : pool.invokeAll(createFragmentTasks(frags)))
+                results.add(future.get());
+        else if (opts.engine.equals("rolling") || opts.engine.equals("sort") || opts.engine.equals("external"))
+            for (Future<Result[]> future : pool.invokeAll(createRangeTasks(frags, opts)))
+                results.addAll(Arrays.asList(future.get()));
+        else if (opts.engine.equals("partition"))
+            results.addAll(partition(frags, opts, pool));
+        else
+            throw new IllegalArgumentException("unknown engine: " + opts.engine);
+        return results;
+    }
+
+    /**
+     * a server for repeated jobs, listening on a loopback port, that keeps the jvm, the pool and the compiled hot
+     * loops warm, so a job's latency is that of steady state code rather than startup and interpretation.
+     * each connection is a job: a line of options as for the command line, added to the options the server was
+     * started with, then the probes if they're inline, then the input if the options don't name a file.
+     * the results are written back and the connection closed, or a line starting "error: " if the job fails.
+     * at most opts.jobs jobs run at once, and each reserves an estimate of the memory it needs from opts.memory
+     * before it starts, so that large jobs wait for each other rather than exhausting the heap
+     */
+    static class Server {
+        final String [] args;
+        final Options opts;
+        final ExecutorService pool;
+        final Semaphore running;
+        /** the memory budget in megabytes, with a permit per megabyte */
+        final int budget;
+        final Semaphore memory;
+        final AtomicLong ids = new AtomicLong();
+
+        Server(String [] args, Options opts, ExecutorService pool) {
+            this.args = args;
+            this.opts = opts;
+            this.pool = pool;
+            running = new Semaphore(Math.max(1, opts.jobs), true);
+            budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, opts.memory >>> 20));
+            memory = new Semaphore(budget, true);
+        }
+
+        /** the connections that may wait to be accepted, and then to be handled */
+        static final int backlog = 64;
+        /** the longest request line */
+        static final int maxLine = 1<<16;
+        /** the options a job may set that take a value, and the flags */
+        static final List<String> jobOptions = Arrays.asList("-engine", "-budget", "-table", "-expected", "-freqs",
+                "-queries", "-inflight", "-decoders", "-decode", "-records", "-header", "-match", "-epsilon", "-delta",
+                "-sketchbytes", "-top", "-index", "-scan", "-topn", "-probes", "-inflaters", "-format", "-generate",
+                "-retries");
+        static final List<String> jobFlags = Arrays.asList("-stream", "-combined", "-canonical");
+
+        void serve() throws Exception {
+            long start = System.nanoTime();
+            warm();
+            try (ServerSocket server = new ServerSocket(opts.port, backlog, InetAddress.getLoopbackAddress())) {
+                System.err.printf("warmed up in %d ms, serving on port %d%n",
+                        (System.nanoTime() - start) / 1000000, server.getLocalPort());
+                // a thread per connection, for twice as many as the jobs that run at once, and a bounded queue
+                int threads = 2*Math.max(1, opts.jobs);
+                ExecutorService connections = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(backlog));
+                for (;;) {
+                    Socket socket = server.accept();
+                    try {
+                        connections.execute(() -> handle(socket));
+                    }
+                    catch (RejectedExecutionException ex) {
+                        refuse(socket);
+                    }
+                }
+            }
+        }
+
+        /** tell the client that there are too many connections, and close it */
+        static void refuse(Socket socket) {
+            try (Socket s = socket) {
+                s.getOutputStream().write("error: too many connections\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            catch (IOException ex) {}
+        }
+
+        /**
+         * the options of a job, ie the server's options followed by the job's.
+         * a job may only set the options that select what's counted and how, and name the input in the root directory,
+         * so a client can't read files outside it, write files, run processes or change how the server runs
+         */
+        Options options(String line) throws IOException {
+            String [] job = line.trim().isEmpty() ? new String[0] : line.trim().split("\\s+");
+            for (int ii=0; ii < job.length; ii++)
+                if (job[ii].equals("-index") || job[ii].equals("-probes")) {
+                    if (++ii < job.length && ! (job[ii-1].equals("-probes") && job[ii].equals("-")))
+                        job[ii] = resolve(job[ii]);
+                }
+                else if (jobOptions.contains(job[ii])) ii++;
+                else if (job[ii].startsWith("-") && ! jobFlags.contains(job[ii]))
+                    throw new IllegalArgumentException("a job can't set " + job[ii]);
+                else if (! jobFlags.contains(job[ii]))
+                    job[ii] = resolve(job[ii]);
+            String [] all = Arrays.copyOf(args, args.length + job.length);
+            System.arraycopy(job, 0, all, args.length, job.length);
+            return new Options(all);
+        }
+
+        /** the path of a file or directory a job names, which must be relative to the root and not leave it */
+        String resolve(String name) throws IOException {
+            if (opts.root==null)
+                throw new IllegalArgumentException("a job can only name files in the server's -root: " + name);
+            Path path = Paths.get(name);
+            boolean up = false;
+            for (Path part : path)
+                up |= part.toString().equals("..");
+            if (path.isAbsolute() || up)
+                throw new IllegalArgumentException("a job can only name files in the server's -root: " + name);
+            // real paths, so a link can't lead out of the root either
+            Path root = Paths.get(opts.root).toRealPath(), real = root.resolve(path).toRealPath();
+            if (! real.startsWith(root))
+                throw new IllegalArgumentException("a job can only name files in the server's -root: " + name);
+            return real.toString();
+        }
+
+        /** an estimate of the bytes a job uses for an input of the given size, or the whole budget if it's unknown */
+        static long estimate(Options opts, long size) {
+            // the tables, and the blocks in flight as read and packed
+            if (opts.engine.equals("external")) return opts.budget + ((long) opts.inflight << 21);
+            if (size < 0) return Long.MAX_VALUE;
+            // the input as read and the packed sequence
+            long bytes = size + size/4;
+            for (int frag : opts.frags())
+                if (Result.dense(frag, size)) bytes += (4L << 2*frag) * nproc;
+                else if (opts.table.equals("sketch")) bytes += Sketch.bytes(opts) * nproc;
+                else bytes += 32 * (frag >= 32 ? size * ((frag+31)/32) : Math.min(size, 1L << 2*frag));
+            return bytes;
+        }
+
+        void handle(Socket socket) {
+            long id = ids.incrementAndGet();
+            try (Socket s = socket) {
+                // buffered once for the request line, the probes and the input, so none of it is lost between them
+                InputStream in = new BufferedInputStream(s.getInputStream(), 1<<16);
+                PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream(), 1<<16), false, "ISO-8859-1");
+                String line = "";
+                try {
+                    line = readLine(in);
+                    Options job = options(line);
+                    long size = job.index != null ? 0 : job.generate > 0 ? 10L * job.generate
+                            : job.path==null ? -1 : Files.size(Paths.get(job.path));
+                    // fasta typically compresses about 4 to 1
+                    if (size > 0 && job.path != null && GzipInput.compressed(Paths.get(job.path))) size *= 4;
+                    int permits = (int) Math.max(1, Math.min(budget, estimate(job, size) >>> 20));
+                    running.acquire();
+                    try {
+                        memory.acquire(permits);
+                        try {
+                            long start = System.nanoTime();
+                            run(job, pool, in, out);
+                            System.err.printf("job %d: %d ms, %d MB reserved: %s%n",
+                                    id, (System.nanoTime() - start) / 1000000, permits, line);
+                        }
+                        finally { memory.release(permits); }
+                    }
+                    finally { running.release(); }
+                }
+                catch (Exception ex) {
+                    out.println("error: " + ex);
+                    System.err.printf("job %d failed: %s: %s%n", id, ex, line);
+                }
+                out.flush();
+            }
+            catch (IOException ex) {
+                System.err.printf("job %d: %s%n", id, ex);
+            }
+        }
+
+        /** the request line, read a byte at a time so that none of the input that follows is consumed */
+        static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int next; (next = in.read()) >= 0 && next != nln; )
+                if (line.length() < maxLine) line.append((char) next);
+                else throw new IOException("the request line is too long");
+            return line.toString();
+        }
+
+        /**
+         * run the warmup jobs with the server's options on a generated sequence,
+         * alternating between mapping a file and reading a stream, and discarding the results
+         */
+        void warm() throws Exception {
+            if (opts.warmup <= 0) return;
+            byte [] input = generate(1<<21);
+            PrintStream discard = new PrintStream(new OutputStream() {
+                public void write(int b) {}
+                public void write(byte [] b, int off, int len) {}
+            });
+            Path file = Files.createTempFile("knucleotide", ".fa");
+            try {
+                Files.write(file, input);
+                for (int ii=0; ii < opts.warmup; ii++) {
+                    Options job = options("");
+                    job.save = job.index = job.records = job.header = job.match = null;
+                    job.shards = 0;
+                    job.path = ii % 2==0 ? file.toString() : null;
+                    run(job, pool, new ByteArrayInputStream(input), discard);
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+
+        /** three random records in fasta format, with the third of the given length */
+        static byte[] generate(int length) {
+            Random random = new Random(42);
+            StringBuilder text = new StringBuilder();
+            String [] names = { "ONE", "TWO", "THREE" };
+            for (int rr=0; rr < names.length; rr++) {
+                text.append('>').append(names[rr]).append('\n');
+                int size = rr==2 ? length : 1000;
+                for (int ii=0; ii < size; ii++) {
+                    text.append(nucleotides[random.nextInt(4)]);
+                    if (ii % 60==59 || ii==size-1) text.append('\n');
+                }
+            }
+            return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * count the third sequence of a file in worker processes, a range of the file's bytes each, so a job isn't limited
+     * to the cores and memory of a single jvm, and a shard that fails is run again on its own rather than recounting
+     * the whole sequence.
+     * a worker is this class run with the job's options and -worker, on its share of the cores. it maps the file and
+     * decodes its range along with the longest length less one bases before it, which are only read, so each window
+     * that straddles the ranges is counted by the shard it ends in. it saves its counts as an index per length, the
+     * keys in order and their counts, each moved into place once it's complete, and exits.
+     * once every shard has succeeded, the indexes of each length are loaded as Sorted results and merged pairwise,
+     * linearly, rather than added to a table a key at a time
+     */
+    static class Shards {
+        final Options opts;
+        final int [] frags;
+        /** the length of the sequence, ie the sum of the bases each shard counted the windows ending in */
+        long total;
+
+        Shards(Options opts, int [] frags) {
+            this.opts = opts;
+            this.frags = frags;
+        }
+
+        /** run a worker per shard, with a thread each to wait for it, and merge their results */
+        List<Result> count(ExecutorService pool) throws Exception {
+            if (opts.path==null || GzipInput.compressed(Paths.get(opts.path)))
+                throw new IllegalArgumentException("shards require an uncompressed input file");
+            Mapper mapper = new Mapper(opts.path);
+            long [] range = mapper.third(pool);
+            int num = opts.shards, longest = frags[frags.length-1];
+            Path dir = Files.createTempDirectory(Paths.get(opts.spill), "knucleotide-");
+            ExecutorService launchers = Executors.newFixedThreadPool(num, task -> {
+                Thread thread = new Thread(task, "shard");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Callable<Path>> tasks = new ArrayList<>();
+                for (int ii=0; ii < num; ii++) {
+                    int shard = ii;
+                    long start = range[0] + (range[1] - range[0]) * ii / num;
+                    long end = range[0] + (range[1] - range[0]) * (ii+1) / num;
+                    long from = mapper.back(start, range[0], longest - 1);
+                    tasks.add(() -> launch(shard, from, start, end, dir.resolve("shard-" + shard)));
+                }
+                List<Path> dirs = new ArrayList<>();
+                for (Future<Path> future : launchers.invokeAll(tasks))
+                    dirs.add(future.get());
+                return merge(dirs, pool);
+            }
+            finally {
+                launchers.shutdownNow();
+                delete(dir);
+            }
+        }
+
+        /** run the worker for a shard until it succeeds, up to retries more times, returning the directory it saved to */
+        Path launch(int shard, long from, long start, long end, Path dir) throws Exception {
+            Metrics.Span span = Metrics.task("shard");
+            String failure = null;
+            for (int attempt=0; attempt <= opts.retries; attempt++) {
+                if (failure != null)
+                    System.err.printf("shard %d failed, %s, running it again%n", shard, failure);
+                Process process = new ProcessBuilder(command(from, start, end, dir)).redirectErrorStream(true).start();
+                try {
+                    process.getOutputStream().close();
+                    BufferedReader lines = new BufferedReader(
+                            new InputStreamReader(process.getInputStream(), StandardCharsets.ISO_8859_1));
+                    for (String line; (line = lines.readLine()) != null; )
+                        System.err.printf("shard %d: %s%n", shard, line);
+                    int status = process.waitFor();
+                    failure = status != 0 ? "exit status " + status : null;
+                    for (int frag : frags)
+                        if (failure==null && ! Files.exists(Indexed.path(dir.toString(), frag)))
+                            failure = "no index for length " + frag;
+                }
+                finally {
+                    process.destroyForcibly();
+                }
+                if (failure==null) {
+                    span.end(end - start, 0);
+                    return dir;
+                }
+            }
+            throw new IOException("shard " + shard + " failed, " + failure + ", with no retries left");
+        }
+
+        /** the command line of a worker, ie this jvm's, less any agent or recording, and the job's options */
+        List<String> command(long from, long start, long end, Path dir) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+                if (! arg.startsWith("-agent") && ! arg.startsWith("-javaagent") && ! arg.startsWith("-XX:StartFlightRecording")
+                        && ! arg.startsWith("-XX:ActiveProcessorCount"))
+                    command.add(arg);
+            command.add("-XX:ActiveProcessorCount=" + Math.max(1, nproc / opts.shards));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(knucleotide.class.getName());
+            command.addAll(Arrays.asList(opts.args));
+            command.addAll(Arrays.asList("-save", dir.toString(), "-worker", from + "," + start + "," + end));
+            return command;
+        }
+
+        /** load the indexes of each length, which are in key order, and merge them pairwise, a task per length */
+        List<Result> merge(List<Path> dirs, ExecutorService pool) throws Exception {
+            for (Path dir : dirs) {
+                Indexed index = Indexed.open(dir.toString(), frags[0], opts.canonical);
+                total += index.index.length;
+                index.free();
+            }
+            List<Callable<Result>> tasks = new ArrayList<>();
+            for (int frag : frags)
+                tasks.add(() -> {
+                    Metrics.Span span = Metrics.span("reduce").frag(frag);
+                    List<Sorted> parts = new ArrayList<>();
+                    for (Path dir : dirs) {
+                        Indexed index = Indexed.open(dir.toString(), frag, opts.canonical);
+                        parts.add(Sorted.of(index.index));
+                        index.free();
+                    }
+                    // each round halves the parts, so each entry is copied log2(shards) times
+                    for (int step=1; step < parts.size(); step *= 2)
+                        for (int ii=0; ii + step < parts.size(); ii += 2*step) {
+                            parts.get(ii).reduce(parts.get(ii + step));
+                            parts.get(ii + step).free();
+                        }
+                    span.end(0, Math.max(0, total - frag + 1));
+                    return parts.get(0);
+                });
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : pool.invokeAll(tasks))
+                results.add(future.get());
+            return results;
+        }
+
+        /** delete the directory and everything in it */
+        static void delete(Path dir) throws IOException {
+            if (! Files.exists(dir)) return;
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        /** count the range of the file given by the worker option, and save an index per length in the save directory */
+        static void work(Options opts, ExecutorService pool) throws Exception {
+            String [] range = opts.worker.split(",");
+            long from = Long.parseLong(range[0]), start = Long.parseLong(range[1]), end = Long.parseLong(range[2]);
+            Probes probes = opts.probes==null ? null : Probes.read(opts.probes, System.in);
+            int [] frags = frags(opts, probes);
+            Mapper mapper = new Mapper(opts.path);
+            mapper.swar = opts.swar();
+            knucleotide knuc = new knucleotide();
+            mapper.decode(knuc, from, end, pool);
+            knuc.overlap = mapper.bases(from, start);
+            List<Result> results = knuc.count(opts, pool, frags);
+            save(opts, opts.save, frags, results, knuc.total - knuc.overlap);
+            for (Result result : results)
+                result.free();
         }
     }
 
     public static void main(String[] args) throws Exception {
-        Reader reader = new Reader();
+        Options opts = new Options(args);
+        ExecutorService pool = Executors.newFixedThreadPool(nproc);
+        try {
+            if (opts.worker != null)
+                Shards.work(opts, pool);
+            else if (opts.port >= 0)
+                new Server(args, opts, pool).serve();
+            else
+                run(opts, pool, System.in, System.out);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * run a job, reading the input from in unless the options name a file,
+     * and writing the results to out unless the options name an output file
+     */
+    static void run(Options opts, ExecutorService pool, InputStream in, OutputStream out) throws Exception {
+        OutputStream os = new BufferedOutputStream(opts.output==null ? out : Channels.newOutputStream(FileChannel.open(
+                Paths.get(opts.output), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)),
+                1<<16);
+        try {
+            if (opts.metrics==null) {
+                job(opts, pool, in, os);
+                return;
+            }
+            Metrics.enable();
+            Metrics.Span span = Metrics.span("run");
+            try {
+                job(opts, pool, in, os);
+            }
+            finally {
+                span.end();
+                if (opts.metrics.equals("-"))
+                    Metrics.write(System.err);
+                else
+                    try (PrintStream file = new PrintStream(opts.metrics, "UTF-8")) {
+                        Metrics.write(file);
+                    }
+            }
+        }
+        finally {
+            if (opts.output==null) os.flush();
+            else os.close();
+        }
+    }
+
+    static void job(Options opts, ExecutorService pool, InputStream in, OutputStream out) throws Exception {
         knucleotide knuc = new knucleotide();
-        reader.read(knuc,System.in);
-        
+        List<Result> results;
+        if (opts.selecting()) {
+            if (opts.path==null || GzipInput.compressed(Paths.get(opts.path)))
+                throw new IllegalArgumentException("selecting records requires an uncompressed input file");
+            Mapper mapper = new Mapper(opts.path);
+            mapper.swar = opts.swar();
+            List<Mapper.Record> records = opts.select(mapper.records(pool));
+            mapper.decode(records, pool);
+            count(records, opts, pool, out);
+            return;
+        }
+        Probes probes = opts.probes==null ? null : Probes.read(opts.probes, in);
+        int [] frags = frags(opts, probes);
+        if (opts.index != null) {
+            results = new ArrayList<>();
+            for (int frag : frags)
+                results.add(Indexed.open(opts.index, frag, opts.canonical));
+            knuc.total = ((Indexed) results.get(0)).index.length;
+            for (Result result : results)
+                if (((Indexed) result).index.length != knuc.total)
+                    throw new IllegalArgumentException("the indexes are for different sequences: " + opts.index);
+        }
+        else if (opts.shards > 0) {
+            Shards shards = new Shards(opts, frags);
+            results = shards.count(pool);
+            knuc.total = shards.total;
+        }
+        else if (opts.stream || opts.generate > 0 || opts.path==null || GzipInput.compressed(Paths.get(opts.path))) {
+            Reader reader = new Reader(opts, opts.stream ? new Streamer(frags, opts, pool) : null);
+            // the generated blocks are handed straight to the reader, with no pipe and no copy
+            fasta.Source generated = opts.generate > 0 ? new fasta.Source(opts.generate) : null;
+            InputStream is = generated != null ? null : input(opts, in);
+            try {
+                Blocks blocks = generated != null ? generated::next : Blocks.of(is, reader.blockSize);
+                if (opts.stream)
+                    results = reader.stream(knuc,blocks);
+                else {
+                    reader.read(knuc,blocks);
+                    results = knuc.count(opts, pool, frags);
+                }
+            }
+            finally {
+                if (generated != null) generated.close();
+                else if (opts.path != null) is.close();
+            }
+        }
+        else {
+            Mapper mapper = new Mapper(opts.path);
+            mapper.swar = opts.swar();
+            mapper.read(knuc,pool);
+            results = knuc.count(opts, pool, frags);
+        }
 
-        ExecutorService pool = Executors.newFixedThreadPool(nproc);
-        int[] fragmentLengths = { 1, 2, 3, 4, 6, 12, 18 };
-        List<Future<Result>> futures = pool.invokeAll(knuc.createFragmentTasks(fragmentLengths));
-        pool.shutdown();
+        if (opts.engine.equals("external"))
+            results = External.combine(results, opts, pool);
+        // freed even if the job fails, since the external runs are files
+        try {
+            measure(results);
+            if (opts.save != null)
+                save(opts, opts.save, opts.frags(), results, knuc.total);
+            if (probes != null) {
+                Metrics.Span span = Metrics.span("probes");
+                probes.write(probes.lookup(results, knuc.total, opts, pool), out);
+                span.end(0, probes.size);
+            }
+            else
+                report(opts, results, out, pool, knuc.total);
+        }
+        finally {
+            for (Result result : results)
+                result.free();
+        }
+    }
+
+    /** record the size, capacity and resizes of each table */
+    static void measure(List<Result> results) {
+        if (! Metrics.measuring()) return;
+        for (Result result : results)
+            Metrics.table(result.frag, result.getClass().getSimpleName(), result.size(), result.capacity(), result.resizes());
+    }
+
+    /** the input file named by the options, or in if there's none, inflated if it's gzip or bgzf */
+    static InputStream input(Options opts, InputStream in) throws IOException {
+        return GzipInput.open(opts.path==null ? in : new FileInputStream(opts.path), opts.inflaters);
+    }
 
-        String result = "";
+    /** every length to count, ie those of the options and of the probes */
+    static int[] frags(Options opts, Probes probes) {
+        return probes==null ? opts.frags()
+                : IntStream.concat(Arrays.stream(opts.frags()), Arrays.stream(probes.frags())).distinct().sorted().toArray();
+    }
 
-        result += futures.get(0).get().writeFrequencies(knuc.total);
-        result += futures.get(1).get().reduce(futures.get(2).get()).writeFrequencies(knuc.total - 1);
+    /** save the results for each of the lengths as an index in the directory */
+    static void save(Options opts, String dir, int [] frags, List<Result> results, long length) throws IOException {
+        Files.createDirectories(Paths.get(dir));
+        for (int frag : frags) {
+            Result merged = merge(results, frag, opts, Math.max(0, length - frag + 1));
+            Metrics.Span span = Metrics.span("save").frag(frag);
+            Indexed.save(merged, length, opts.canonical, Indexed.path(dir, frag));
+            span.end(0, merged.size());
+            merged.free();
+        }
+    }
 
-        String[] frags = { "GGT", "GGTA", "GGTATT", "GGTATTTTAATT", "GGTATTTTAATTTATAGT" };
-        for (String frag : frags)
-            result += writeCount(futures, frag);
+    /** write the frequencies and counts of the results, for sequences of the given lengths */
+    static void report(Options opts, List<Result> results, OutputStream out, ExecutorService pool, long ... lengths)
+            throws Exception {
+        Output output = new Output(opts.format, pool);
+        for (int frag : opts.freqs) {
+            long windows = 0;
+            for (long length : lengths)
+                windows += Math.max(0, length - frag + 1);
+            if (opts.topn > 0) {
+                Metrics.Span span = Metrics.span("frequencies").frag(frag);
+                Indexed.of(results, frag).writeTop(output, opts.topn, windows, out);
+                span.end(0, opts.topn);
+                continue;
+            }
+            Result merged = merge(results, frag, opts, windows);
+            Metrics.Span span = Metrics.span("frequencies").frag(frag);
+            merged.write(output, windows, out);
+            span.end(0, windows);
+            merged.free();
+        }
 
-        System.out.print(result);
+        // the counts of the queries are text lines, so they're left out of binary output
+        if (output.kind==Output.binary) return;
+        List<Result> queried = opts.queries.length > 0 ? Sketch.merged(results, opts) : results;
+        for (String frag : opts.queries) {
+            Metrics.Span span = Metrics.span("query").frag(frag.length());
+            out.write(writeCount(queried, opts.canonical ? canonical(frag) : frag).getBytes(StandardCharsets.ISO_8859_1));
+            span.end();
+        }
+        for (String scan : opts.scans) {
+            Metrics.Span span = Metrics.span("scan").frag(Indexed.length(scan));
+            Indexed.of(results, Indexed.length(scan)).scan(scan, out);
+            span.end();
+        }
     }
 }
 